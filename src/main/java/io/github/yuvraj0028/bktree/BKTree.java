@@ -1,12 +1,18 @@
 package io.github.yuvraj0028.bktree;
 
-import java.util.ArrayDeque;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.OptionalLong;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+import io.github.yuvraj0028.index.HashIndex;
+import io.github.yuvraj0028.index.HashVisitor;
 import io.github.yuvraj0028.utils.Hamming;
 
 /**
@@ -14,33 +20,286 @@ import io.github.yuvraj0028.utils.Hamming;
  * in metric spaces. It is particularly effective for large sets of perceptual
  * hashes (like pHash or dHash) where the distance metric is the Hamming distance.
  */
-public class BKTree {
+public class BKTree implements HashIndex {
     
+    // Shared empty child array so that leaf nodes do not allocate one each.
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    // Subtrees with at least this many nodes are searched as separate fork-join tasks
+    // by the parallel search; smaller ones are cheaper to search on the current thread.
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    // Once more than this fraction of the nodes are tombstones, the tree needs compaction.
+    private static final double COMPACTION_RATIO = 0.25;
+
+    // Bulk loading: ranges smaller than this simply use their first hash as the pivot.
+    private static final int PIVOT_SELECTION_MIN = 64;
+
+    // Bulk loading: number of pivot candidates tried, and of hashes each one is scored on.
+    private static final int PIVOT_CANDIDATES = 8;
+    private static final int PIVOT_SAMPLES = 32;
+
+    // Typical time to visit one node during a search (a dependent load, a popcount and the
+    // pruning step), used by estimateSearchCost().
+    static final double NODE_VISIT_NANOS = 20;
+
+    // Random root-to-leaf descents that estimateSearchCost() averages.
+    static final int ESTIMATE_DESCENTS = 32;
+
     // Node class to depict BKTree and its nodes [children]
     private static class Node{
         // The value (e.g., the 64-bit image hash) stored at this node.
         final long value;
         
-        // Children are mapped by the distance (Hamming distance) from this node's value.
-        // The key 'd' means the child node's value has a distance 'd' from this node's value.
-        final Map<Integer, Node> children = new HashMap<>();
+        // Occupancy bitmask of the children: bit 'd' is set when a child exists at
+        // Hamming distance 'd' (0..63) from this node's value.
+        long mask;
+        
+        // Children stored densely in ascending order of their distance from this node.
+        // A child at distance 64 can only be the bitwise complement of 'value', so it has
+        // no mask bit: when present it is the extra, last element of the array.
+        Node[] children = NO_CHILDREN;
+        
+        // Number of nodes in the subtree rooted here (including this node and tombstones).
+        int size = 1;
+        
+        // Multiplicity: how many times the value was added. Exact duplicates share one node
+        // instead of forming a chain of distance-0 children. Zero marks a tombstone: the value
+        // was removed, but the node still routes searches to its children until compaction.
+        int count = 1;
         
         Node(long value) {this.value = value;}
+
+        // Returns the child at the given distance, or null if there is none.
+        Node child(int dist) {
+            if (dist == 64) {
+                return hasComplement() ? children[children.length - 1] : null;
+            }
+            long bit = 1L << dist;
+            if ((mask & bit) == 0) return null;
+            // The dense index is the number of occupied distances below 'dist'.
+            return children[Long.bitCount(mask & (bit - 1))];
+        }
+
+        // Attaches a new child at a distance that is not occupied yet, keeping the order.
+        void attach(int dist, Node child) {
+            int idx = dist == 64 ? children.length : Long.bitCount(mask & ((1L << dist) - 1));
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, idx);
+            System.arraycopy(children, idx, grown, idx + 1, children.length - idx);
+            grown[idx] = child;
+            children = grown;
+            if (dist < 64) mask |= 1L << dist;
+        }
+
+        // Whether a child at distance 64 (the complement of 'value') is present.
+        boolean hasComplement() {
+            return children.length > Long.bitCount(mask);
+        }
     }
 
+    // A node paired with a distance: either its exact distance to the query (a result)
+    // or the lowest distance any hash in its subtree can have (a node still to visit).
+    private static final class Candidate{
+        final Node node;
+        final int dist;
+
+        Candidate(Node node, int dist) {this.node = node; this.dist = dist;}
+    }
+
+    // Growable stack of nodes to visit, reused by every search on the same thread.
+    private static final class TraversalStack{
+        Node[] nodes = new Node[64];
+        int top;
+        int highWater;
+        boolean inUse;
+
+        void push(Node node) {
+            if(top == nodes.length) nodes = Arrays.copyOf(nodes, top * 2);
+            nodes[top++] = node;
+            if(top > highWater) highWater = top;
+        }
+
+        Node pop() {
+            return nodes[--top];
+        }
+
+        // Drops the node references left behind so the stack does not keep a cleared tree alive.
+        void release() {
+            Arrays.fill(nodes, 0, highWater, null);
+            top = 0;
+            highWater = 0;
+            inUse = false;
+        }
+    }
+
+    private static final ThreadLocal<TraversalStack> STACKS = ThreadLocal.withInitial(TraversalStack::new);
+
     // initial state: the root of the BK-Tree
     private Node root = null;
+
+    // Number of tombstoned nodes still linked into the tree.
+    private int tombstones = 0;
     
     /**
      * Constructs an empty BKTree.
      */
     public BKTree(){}
 
+    /**
+     * Builds a BKTree from a whole set of hashes at once. Instead of taking whatever hash
+     * happens to be inserted first as the pivot of every subtree, the pivot is chosen among
+     * a few sampled candidates as the one whose distances to the others are most spread out,
+     * which gives wider, shallower trees that are cheaper to search.
+     * @param hashes The 64-bit hashes to load (the array is not modified).
+     * @return A new BKTree holding all the hashes.
+     */
+    public static BKTree bulkLoad(long[] hashes){
+        return bulkLoad(hashes, null);
+    }
+
+    /**
+     * Builds a BKTree from a whole set of hashes at once (see {@link #bulkLoad(long[])}),
+     * building large subtrees as parallel tasks on the given fork-join pool.
+     * @param hashes The 64-bit hashes to load (the array is not modified).
+     * @param pool The pool that builds the subtrees, or null to build on the calling thread.
+     * @return A new BKTree holding all the hashes.
+     */
+    public static BKTree bulkLoad(long[] hashes, ForkJoinPool pool){
+        BKTree tree = new BKTree();
+        if(hashes.length == 0) return tree;
+
+        // Partitions are done in place: every subtree owns one range of 'values', and the
+        // scratch arrays are only ever touched inside the range being partitioned.
+        long[] values = hashes.clone();
+        BuildTask task = new BuildTask(values, new long[values.length], new byte[values.length],
+                0, values.length, pool != null);
+        tree.root = pool == null ? task.compute() : pool.invoke(task);
+        return tree;
+    }
+
+    // Fork-join task building the subtree for one range of hashes.
+    private static final class BuildTask extends RecursiveTask<Node>{
+        // Fork-join tasks are Serializable, though this one is never serialized.
+        private static final long serialVersionUID = 1L;
+
+        final long[] values;
+        final long[] scratch;
+        final byte[] dists;
+        final int from;
+        final int to;
+        final boolean parallel;
+
+        BuildTask(long[] values, long[] scratch, byte[] dists, int from, int to, boolean parallel) {
+            this.values = values;
+            this.scratch = scratch;
+            this.dists = dists;
+            this.from = from;
+            this.to = to;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected Node compute() {
+            // 1. Move the chosen pivot to the front of the range; it becomes the subtree root.
+            choosePivot(values, from, to);
+            Node node = new Node(values[from]);
+
+            // 2. Counting sort the rest of the range by distance to the pivot, so every
+            //    child subtree ends up as one contiguous bucket.
+            int[] starts = new int[66];
+            for(int i = from + 1; i < to; i++){
+                int dist = Hamming.distanceLong(node.value, values[i]);
+                dists[i] = (byte) dist;
+                starts[dist + 1]++;
+            }
+            for(int d = 0; d < 65; d++){
+                starts[d + 1] += starts[d];
+            }
+            int[] next = Arrays.copyOf(starts, 65);
+            for(int i = from + 1; i < to; i++){
+                scratch[from + 1 + next[dists[i]]++] = values[i];
+            }
+            System.arraycopy(scratch, from + 1, values, from + 1, to - from - 1);
+
+            // 3. Exact duplicates of the pivot (bucket 0) only add to its multiplicity.
+            node.count += starts[1];
+
+            // 4. Build the child subtrees bucket by bucket, in distance order.
+            int childCount = 0;
+            for(int d = 1; d <= 64; d++){
+                if(starts[d + 1] > starts[d]) childCount++;
+            }
+            if(childCount == 0) return node;
+
+            Node[] children = new Node[childCount];
+            List<BuildTask> forked = new ArrayList<>();
+            int[] forkedAt = new int[childCount];
+            int idx = 0;
+            for(int d = 1; d <= 64; d++){
+                int lo = from + 1 + starts[d];
+                int hi = from + 1 + starts[d + 1];
+                if(lo == hi) continue;
+                if(d < 64) node.mask |= 1L << d;
+
+                if(parallel && hi - lo >= PARALLEL_THRESHOLD){
+                    BuildTask task = new BuildTask(values, scratch, dists, lo, hi, true);
+                    task.fork();
+                    forkedAt[forked.size()] = idx++;
+                    forked.add(task);
+                } else {
+                    children[idx++] = new BuildTask(values, scratch, dists, lo, hi, parallel).compute();
+                }
+            }
+            for(int i = 0; i < forked.size(); i++){
+                children[forkedAt[i]] = forked.get(i).join();
+            }
+            node.children = children;
+            node.size = 1 + subtreeSizes(children);
+            return node;
+        }
+    }
+
+    // Swaps the best pivot of values[from..to) into position 'from'. The candidates are spread
+    // evenly over the range and scored on an evenly spread sample of it: the candidate whose
+    // distances to the sample have the largest variance splits the range into the most
+    // (and most even) buckets.
+    private static void choosePivot(long[] values, int from, int to){
+        int n = to - from;
+        if(n < PIVOT_SELECTION_MIN) return;
+
+        int best = from;
+        long bestSpread = -1;
+        for(int c = 0; c < PIVOT_CANDIDATES; c++){
+            int candidate = from + (int) ((long) c * n / PIVOT_CANDIDATES);
+            long sum = 0;
+            long squares = 0;
+            for(int s = 0; s < PIVOT_SAMPLES; s++){
+                // Offset by half a step so the sample does not coincide with the candidates.
+                int sample = from + (int) (((long) s * 2 + 1) * n / (2L * PIVOT_SAMPLES));
+                int dist = Hamming.distanceLong(values[candidate], values[sample]);
+                sum += dist;
+                squares += dist * dist;
+            }
+            // Proportional to the variance, kept in integers.
+            long spread = PIVOT_SAMPLES * squares - sum * sum;
+            if(spread > bestSpread){
+                bestSpread = spread;
+                best = candidate;
+            }
+        }
+
+        long tmp = values[from];
+        values[from] = values[best];
+        values[best] = tmp;
+    }
+
     /**
      * Adds an image hash (long value) to the BKTree.
      * The insertion process uses the Hamming distance to determine the path.
      * * @param value The 64-bit hash of the image to add.
      */
+    @Override
     public void add(long value){
         // Case 1: Tree is empty. The new value becomes the root.
         if(root == null){
@@ -48,54 +307,220 @@ public class BKTree {
             return;
         }
 
-        Node curr = root;
+        // Case 2: The value is already stored (or tombstoned): one more copy of it.
+        Node existing = insertFrom(root, value, 1);
+        if(existing != null && existing.count++ == 0){
+            tombstones--;
+        }
+    }
+
+    // Inserts 'count' copies of a value into the subtree rooted at 'start'. Returns the node
+    // already holding the value, whose multiplicity the caller updates, or null if a new node
+    // was created.
+    private static Node insertFrom(Node start, long value, int count){
+        Node curr = start;
         // Traverse the tree until an insertion point is found.
         while(true){
             // 1. Calculate the Hamming distance between the current node's value and the new value.
             int dist = Hamming.distanceLong(curr.value, value);
+
+            // 2. An exact duplicate needs no new node, so the subtree sizes counted on the
+            //    way down are given back.
+            if(dist == 0){
+                for(Node n = start; n != curr; n = n.child(Hamming.distanceLong(n.value, value))){
+                    n.size--;
+                }
+                return curr;
+            }
+
+            // Every node on the path gains the new node in its subtree.
+            curr.size++;
             
-            // 2. Check if a child node exists for this distance.
-            Node child = curr.children.get(dist);
+            // 3. Check if a child node exists for this distance.
+            Node child = curr.child(dist);
             
             if(child != null){
                 // If a child exists at this exact distance, continue the traversal down to the child.
                 curr = child;
             } else {
                 // If no child exists at this distance, an insertion point is found.
-                // 3. Create a new node and add it as a child to the current node,
-                //    using the calculated distance as the map key.
-                Node newNode = new Node(value);
-                curr.children.put(dist, newNode);
-                return; // Insertion complete.
+                // 4. Create a new node and attach it to the current node
+                //    at the calculated distance.
+                Node node = new Node(value);
+                node.count = count;
+                curr.attach(dist, node);
+                return null; // Insertion complete.
+            }
+        }
+    }
+
+    /**
+     * Adds an image hash unless a stored hash lies within maxDist of it, in one traversal:
+     * the search walks the insertion path first and sets the other candidate subtrees aside,
+     * so when nothing matches, the new node goes where that path ended.
+     * @param value The 64-bit hash of the image to add.
+     * @param maxDist The maximum Hamming distance at which a stored hash counts as a duplicate.
+     * @return A stored hash within maxDist of the value (the value is then not added), or
+     *         empty if the value was added.
+     */
+    @Override
+    public OptionalLong addIfAbsentWithin(long value, int maxDist){
+        if(root == null || maxDist < 0){
+            add(value);
+            return OptionalLong.empty();
+        }
+
+        TraversalStack stack = STACKS.get();
+        if(stack.inUse) stack = new TraversalStack();
+        stack.inUse = true;
+        try{
+            // The insertion path, as far as it has been walked: its next node, its last node
+            // (whose subtree size was counted), and where the new node would hang.
+            Node pathNext = root;
+            Node pathEnd = null;
+            Node parent = null;
+            int parentDist = 0;
+            Node tombstone = null;
+
+            stack.push(root);
+            while(stack.top > 0){
+                Node curr = stack.pop();
+                int dist = Hamming.distanceLong(curr.value, value);
+
+                // 1. A live match ends the walk; the path sizes counted so far are given back.
+                if(dist <= maxDist && curr.count > 0){
+                    if(pathEnd != null) uncount(pathEnd, value);
+                    return OptionalLong.of(curr.value);
+                }
+
+                // 2. Path nodes gain the new node in their subtree; the path ends at an
+                //    empty child slot, or at a tombstone of the value itself.
+                Node follow = null;
+                if(curr == pathNext){
+                    if(dist == 0){
+                        tombstone = curr;
+                    } else {
+                        curr.size++;
+                        pathEnd = curr;
+                        follow = curr.child(dist);
+                        if(follow == null){
+                            parent = curr;
+                            parentDist = dist;
+                        }
+                    }
+                    pathNext = follow;
+                }
+
+                // 3. Same pruning as search(), except that the path child is pushed last,
+                //    so it is the next node visited.
+                int lo = Math.max(0, dist - maxDist);
+                int hi = dist + maxDist;
+                Node[] children = curr.children;
+                int idx = Long.bitCount(curr.mask & lowMask(lo));
+                for (int n = Long.bitCount(curr.mask & rangeMask(lo, hi)); n > 0; n--) {
+                    Node child = children[idx++];
+                    if(child != follow) stack.push(child);
+                }
+                if (hi >= 64 && curr.hasComplement() && children[children.length - 1] != follow) {
+                    stack.push(children[children.length - 1]);
+                }
+                if(follow != null) stack.push(follow);
             }
+
+            // 4. No match: revive the tombstone of the value, or attach a new node.
+            if(tombstone != null){
+                if(pathEnd != null) uncount(pathEnd, value);
+                tombstone.count = 1;
+                tombstones--;
+            } else {
+                parent.attach(parentDist, new Node(value));
+            }
+            return OptionalLong.empty();
+        } finally {
+            stack.release();
+        }
+    }
+
+    // Gives back the subtree sizes counted along the insertion path of 'value', from the
+    // root down to (and including) 'end'.
+    private void uncount(Node end, long value){
+        for(Node n = root; ; n = n.child(Hamming.distanceLong(n.value, value))){
+            n.size--;
+            if(n == end) return;
+        }
+    }
+
+    /**
+     * Returns how many times an image hash is currently stored in the BKTree.
+     * @param value The 64-bit hash to look up.
+     * @return The number of copies of the hash, 0 if it is not stored.
+     */
+    public int multiplicity(long value){
+        Node curr = root;
+        while(curr != null){
+            int dist = Hamming.distanceLong(curr.value, value);
+            if(dist == 0) return curr.count;
+            curr = curr.child(dist);
         }
+        return 0;
     }
 
     /**
      * Searches for image hashes in the BKTree that are within a specified maximum distance
      * (maxDist) of the query value. This is used to find similar images.
+     * A hash that was added several times is reported once.
      * * @param value The query hash (image hash) to search for.
      * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
      * @return A list of hashes from the tree that are within maxDist of the query value.
      */
+    @Override
     public List<Long> search(long value, int maxDist){
         List<Long> res = new ArrayList<>();
-        if(root == null) return res;
+        search(value, maxDist, (hash, dist) -> res.add(hash));
+        return res;
+    }
 
-        // Use a Deque (as a stack for DFS or queue for BFS) to manage nodes to visit.
-        // A stack is used here, effectively implementing a Depth-First Search (DFS).
-        Deque<Node> stack = new ArrayDeque<>();
-        stack.push(root);
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor instead of collecting them. The traversal stack is kept per thread
+     * and reused, so a search in steady state allocates nothing.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its distance; returning false stops the search.
+     * @return true if the whole tree was searched, false if the visitor stopped it early.
+     */
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor){
+        return root == null || searchFrom(root, value, maxDist, visitor);
+    }
+
+    // Searches the subtree rooted at 'start' using this thread's traversal stack.
+    private static boolean searchFrom(Node start, long value, int maxDist, HashVisitor visitor){
+        // Borrow this thread's stack. A search started from inside a visitor finds it
+        // taken and falls back to a stack of its own.
+        TraversalStack stack = STACKS.get();
+        if(stack.inUse) stack = new TraversalStack();
+        stack.inUse = true;
+        try{
+            return search(start, value, maxDist, visitor, stack);
+        } finally {
+            stack.release();
+        }
+    }
+
+    private static boolean search(Node start, long value, int maxDist, HashVisitor visitor, TraversalStack stack){
+        // The stack holds the nodes still to visit, effectively implementing a Depth-First Search (DFS).
+        stack.push(start);
         
-        while(!stack.isEmpty()){
+        while(stack.top > 0){
             Node curr = stack.pop();
             
             // 1. Calculate the distance between the current node's value and the query value.
             int dist = Hamming.distanceLong(curr.value, value);
             
             // 2. If the distance is within the tolerance, the current node is a match.
-            if(dist <= maxDist){
-                res.add(curr.value);
+            if(dist <= maxDist && curr.count > 0 && !visitor.visit(curr.value, dist)){
+                return false;
             }
             
             // 3. Pruning Step: Calculate the distance range for relevant children.
@@ -106,20 +531,609 @@ public class BKTree {
             int lo = Math.max(0, dist - maxDist); // Lower bound
             int hi = dist + maxDist;              // Upper bound
             
-            // 4. Iterate over all children and only push those that fall within the calculated range.
-            for (Map.Entry<Integer, Node> e : curr.children.entrySet()) {
-                int childDist = e.getKey(); // This is d(curr, child.value)
-                
-                // If the child's distance from the current node is in the search range,
-                // it is possible for the child (or its descendants) to be a match.
-                if (childDist >= lo && childDist <= hi) {
-                    stack.push(e.getValue());
+            // 4. Push only the children whose distance falls within the calculated range.
+            //    Occupied distances inside [lo, hi] are contiguous in the dense array, so the
+            //    first index is the number of children below 'lo' and the count is read
+            //    straight off the masked occupancy bits.
+            Node[] children = curr.children;
+            int idx = Long.bitCount(curr.mask & lowMask(lo));
+            for (int n = Long.bitCount(curr.mask & rangeMask(lo, hi)); n > 0; n--) {
+                stack.push(children[idx++]);
+            }
+            if (hi >= 64 && curr.hasComplement()) {
+                stack.push(children[children.length - 1]);
+            }
+            // Children outside this range are guaranteed *not* to contain matches
+            // within their subtrees, thus pruning the search space.
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the time a search would take from the number of nodes it would visit,
+     * without walking them all: a few random descents from the root follow the search's
+     * pruning and extrapolate from the subtree sizes (Knuth's estimator, with children
+     * picked in proportion to their size). Each descent costs one root-to-leaf path, so the
+     * estimate stays cheap however large the tree and the search are.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return The estimated search time in nanoseconds.
+     */
+    @Override
+    public double estimateSearchCost(long value, int maxDist){
+        if(root == null || maxDist < 0) return 0;
+
+        // The descents are seeded from the query, so the same query gets the same estimate.
+        long seed = value ^ ((long) maxDist << 32);
+        double visited = 0;
+        Node[] inRange = new Node[65];
+        for(int probe = 0; probe < ESTIMATE_DESCENTS; probe++){
+            Node curr = root;
+            double weight = 1;
+            while(true){
+                // 1. Every node on the path stands for 'weight' nodes the search visits.
+                visited += weight;
+
+                // 2. Same pruning as search(): only children in [dist - maxDist, dist + maxDist].
+                int dist = Hamming.distanceLong(curr.value, value);
+                int lo = Math.max(0, dist - maxDist);
+                int hi = dist + maxDist;
+                Node[] children = curr.children;
+                int idx = Long.bitCount(curr.mask & lowMask(lo));
+                int n = 0;
+                long mass = 0;
+                for (int k = Long.bitCount(curr.mask & rangeMask(lo, hi)); k > 0; k--) {
+                    mass += children[idx].size;
+                    inRange[n++] = children[idx++];
+                }
+                if (hi >= 64 && curr.hasComplement()) {
+                    mass += children[children.length - 1].size;
+                    inRange[n++] = children[children.length - 1];
+                }
+                if(n == 0) break;
+
+                // 3. Descend into one of them, picked with probability size / mass; dividing
+                //    the weight by that probability keeps the estimate unbiased.
+                seed += 0x9E3779B97F4A7C15L;
+                long pick = Long.remainderUnsigned(mix(seed), mass);
+                int c = 0;
+                while(pick >= inRange[c].size){
+                    pick -= inRange[c++].size;
+                }
+                weight *= (double) mass / inRange[c].size;
+                curr = inRange[c];
+            }
+        }
+        return visited / ESTIMATE_DESCENTS * NODE_VISIT_NANOS;
+    }
+
+    // Finalizer of the SplitMix64 generator: turns a counter into well-mixed random bits.
+    static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value using all cores of the
+     * common fork-join pool. Worth it for wide searches that visit a large part of the tree.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return A list of hashes from the tree that are within maxDist of the query value.
+     */
+    public List<Long> searchParallel(long value, int maxDist){
+        return searchParallel(value, maxDist, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value on the given fork-join
+     * pool. Every subtree that is large enough becomes its own task and the partial results
+     * are merged; the tree must not be modified while the search runs.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param pool The pool that runs the search tasks.
+     * @return A list of hashes from the tree that are within maxDist of the query value.
+     */
+    public List<Long> searchParallel(long value, int maxDist, ForkJoinPool pool){
+        if(root == null) return new ArrayList<>();
+        return pool.invoke(new SearchTask(root, value, maxDist));
+    }
+
+    // Fork-join task searching one subtree; large in-range child subtrees are forked.
+    private static final class SearchTask extends RecursiveTask<List<Long>>{
+        // Fork-join tasks are Serializable, though this one is never serialized.
+        private static final long serialVersionUID = 1L;
+
+        final Node node;
+        final long value;
+        final int maxDist;
+
+        SearchTask(Node node, long value, int maxDist) {
+            this.node = node;
+            this.value = value;
+            this.maxDist = maxDist;
+        }
+
+        @Override
+        protected List<Long> compute() {
+            List<Long> res = new ArrayList<>();
+            HashVisitor collect = (hash, dist) -> res.add(hash);
+
+            // 1. A small subtree is not worth splitting: search it sequentially.
+            if(node.size < PARALLEL_THRESHOLD){
+                searchFrom(node, value, maxDist, collect);
+                return res;
+            }
+
+            int dist = Hamming.distanceLong(node.value, value);
+            if(dist <= maxDist && node.count > 0) res.add(node.value);
+
+            // 2. Fork the large in-range children, search the small ones right here.
+            int lo = Math.max(0, dist - maxDist);
+            int hi = dist + maxDist;
+            Node[] children = node.children;
+            int from = Long.bitCount(node.mask & lowMask(lo));
+            int to = from + Long.bitCount(node.mask & rangeMask(lo, hi));
+            if(hi >= 64 && node.hasComplement()) to = children.length;
+
+            List<SearchTask> forked = new ArrayList<>();
+            for(int i = from; i < to; i++){
+                Node child = children[i];
+                if(child.size >= PARALLEL_THRESHOLD){
+                    SearchTask task = new SearchTask(child, value, maxDist);
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    searchFrom(child, value, maxDist, collect);
+                }
+            }
+
+            // 3. Merge the results of the forked subtrees.
+            for(SearchTask task : forked){
+                res.addAll(task.join());
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Searches for the matches of many query hashes at once, walking the tree a single
+     * time instead of once per query. Each branch carries the queries that can still
+     * match inside it, so the upper levels of the tree are read once for the whole batch.
+     * @param queries The query hashes (image hashes) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return One list per query, in the same order, holding the hashes within maxDist of it.
+     */
+    public List<List<Long>> searchBatch(long[] queries, int maxDist){
+        List<List<Long>> res = new ArrayList<>(queries.length);
+        for(int i = 0; i < queries.length; i++){
+            res.add(new ArrayList<>());
+        }
+        searchBatch(queries, maxDist, (query, hash, dist) -> res.get(query).add(hash));
+        return res;
+    }
+
+    /**
+     * Searches for the matches of many query hashes in a single walk of the tree, handing
+     * every match to the visitor together with the index of the query it belongs to.
+     * @param queries The query hashes (image hashes) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its query index and distance.
+     */
+    public void searchBatch(long[] queries, int maxDist, BatchHashVisitor visitor){
+        int n = queries.length;
+        if(root == null || n == 0) return;
+
+        // The queries still live at the node being visited, and their distances to it.
+        int[] live = new int[n];
+        int[] dists = new int[n];
+
+        // Pending branches: a node plus the slice of 'pool' that lists its live queries.
+        // Branches are taken from the top (DFS), so the pool is also used as a stack.
+        Node[] nodes = new Node[64];
+        int[] starts = new int[64];
+        int[] lens = new int[64];
+        int[] pool = new int[Math.max(64, n * 2)];
+        int frames = 0;
+        int poolTop = n;
+
+        nodes[0] = root;
+        lens[0] = n;
+        for(int i = 0; i < n; i++) pool[i] = i;
+        frames++;
+
+        while(frames > 0){
+            frames--;
+            Node curr = nodes[frames];
+            nodes[frames] = null;
+            int count = lens[frames];
+            // The popped slice is the topmost one, so it can be handed back right away.
+            System.arraycopy(pool, starts[frames], live, 0, count);
+            poolTop = starts[frames];
+
+            // 1. Distances of all live queries to this node in one tight loop, reporting
+            //    matches and tracking the spread needed to bound the children.
+            long value = curr.value;
+            boolean removed = curr.count == 0;
+            int minDist = 64;
+            int maxSeen = 0;
+            for(int i = 0; i < count; i++){
+                int q = live[i];
+                int dist = Hamming.distanceLong(value, queries[q]);
+                dists[i] = dist;
+                if(dist <= maxDist && !removed) visitor.visit(q, value, dist);
+                if(dist < minDist) minDist = dist;
+                if(dist > maxSeen) maxSeen = dist;
+            }
+
+            // 2. A child can only matter if it is in range of at least one live query.
+            int lo = Math.max(0, minDist - maxDist);
+            int hi = maxSeen + maxDist;
+            Node[] children = curr.children;
+            long inRange = curr.mask & rangeMask(lo, hi);
+            int idx = Long.bitCount(curr.mask & lowMask(lo));
+            int remaining = Long.bitCount(inRange) + (hi >= 64 && curr.hasComplement() ? 1 : 0);
+
+            while(remaining-- > 0){
+                int edge = inRange != 0 ? Long.numberOfTrailingZeros(inRange) : 64;
+                inRange &= inRange - 1;
+                Node child = edge == 64 ? children[children.length - 1] : children[idx++];
+
+                // 3. Prune per query: keep only the queries for which the child's distance
+                //    lies in [dist - maxDist, dist + maxDist].
+                if(poolTop + count > pool.length){
+                    pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolTop + count));
+                }
+                int start = poolTop;
+                for(int i = 0; i < count; i++){
+                    if(Math.abs(dists[i] - edge) <= maxDist) pool[poolTop++] = live[i];
+                }
+                if(poolTop == start) continue;
+
+                if(frames == nodes.length){
+                    nodes = Arrays.copyOf(nodes, frames * 2);
+                    starts = Arrays.copyOf(starts, frames * 2);
+                    lens = Arrays.copyOf(lens, frames * 2);
                 }
-                // Children outside this range are guaranteed *not* to contain matches
-                // within their subtrees, thus pruning the search space.
+                nodes[frames] = child;
+                starts[frames] = start;
+                lens[frames] = poolTop - start;
+                frames++;
+            }
+        }
+    }
+
+    /**
+     * Finds the k hashes in the BKTree that are closest to the query value, without
+     * having to guess a search radius up front. The tree is searched best-first: the
+     * radius starts unbounded and shrinks to the k-th best distance found so far, and
+     * subtrees are visited in order of the lowest distance they can still contain.
+     * @param value The query hash (image hash) to search for.
+     * @param k The maximum number of hashes to return.
+     * @return Up to k hashes from the tree, ordered from the closest to the farthest.
+     */
+    @Override
+    public List<Long> nearest(long value, int k){
+        List<Long> res = new ArrayList<>();
+        if(root == null || k <= 0) return res;
+
+        // The best k matches so far, with the worst one at the head so it can be replaced.
+        PriorityQueue<Candidate> best = new PriorityQueue<>(k, (a, b) -> Integer.compare(b.dist, a.dist));
+        // Nodes still to visit, with the most promising (lowest bound) one at the head.
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>((a, b) -> Integer.compare(a.dist, b.dist));
+        frontier.add(new Candidate(root, 0));
+        int radius = 64; // nothing is farther than 64 bits
+
+        while(!frontier.isEmpty()){
+            Candidate next = frontier.poll();
+            // 1. Once k matches are known, a subtree that cannot beat the worst of them is
+            //    useless; since the frontier is ordered, neither can any remaining one.
+            if(best.size() == k && next.dist >= radius) break;
+
+            Node curr = next.node;
+            int dist = Hamming.distanceLong(curr.value, value);
+
+            // 2. Keep the node if it is one of the k closest seen so far, and shrink the
+            //    radius to the distance of the current k-th best match.
+            if(curr.count == 0){
+                // A tombstone only routes the search to its children.
+            } else if(best.size() < k){
+                best.add(new Candidate(curr, dist));
+                if(best.size() == k) radius = best.peek().dist;
+            } else if(dist < radius){
+                best.poll();
+                best.add(new Candidate(curr, dist));
+                radius = best.peek().dist;
             }
+
+            // 3. A child at distance 'd' from 'curr' only holds hashes at least |dist - d|
+            //    away from the query (triangle inequality), so that is its bound.
+            int lo = Math.max(0, dist - radius);
+            int hi = dist + radius;
+            Node[] children = curr.children;
+            long inRange = curr.mask & rangeMask(lo, hi);
+            int idx = Long.bitCount(curr.mask & lowMask(lo));
+            while(inRange != 0){
+                int d = Long.numberOfTrailingZeros(inRange);
+                inRange &= inRange - 1;
+                frontier.add(new Candidate(children[idx++], Math.abs(dist - d)));
+            }
+            if(hi >= 64 && curr.hasComplement()){
+                frontier.add(new Candidate(children[children.length - 1], 64 - dist));
+            }
+        }
+
+        // 4. The max-heap drains from the farthest match, so reverse it afterwards.
+        while(!best.isEmpty()){
+            res.add(best.poll().node.value);
         }
+        Collections.reverse(res);
         return res;
     }
 
+    /**
+     * Removes every copy of an image hash from the BKTree. The node is only marked as a
+     * tombstone, which searches skip but still route through, so removal is as cheap as a
+     * lookup. Tombstones are only unlinked by {@link #compact()}, never during a removal:
+     * callers check {@link #needsCompaction()} and compact when it suits them.
+     * @param value The 64-bit hash of the image to remove.
+     * @return true if the hash was present (and is now removed), false otherwise.
+     */
+    @Override
+    public boolean remove(long value){
+        Node curr = root;
+        // Follow the insertion path of the value down to the node holding it.
+        while(curr != null){
+            int dist = Hamming.distanceLong(curr.value, value);
+            if(dist == 0) break;
+            curr = curr.child(dist);
+        }
+        if(curr == null || curr.count == 0) return false;
+
+        curr.count = 0;
+        tombstones++;
+        return true;
+    }
+
+    /**
+     * Returns whether tombstones left behind by {@link #remove(long)} make up more than a
+     * quarter of the nodes, so that searches waste a noticeable share of their visits on
+     * them and {@link #compact()} is worth its cost. A removed root does not count, since
+     * compaction keeps it as a routing node anyway.
+     * @return true if the tree should be compacted.
+     */
+    @Override
+    public boolean needsCompaction(){
+        if(root == null) return false;
+        int unlinkable = root.count == 0 ? tombstones - 1 : tombstones;
+        return unlinkable > COMPACTION_RATIO * root.size;
+    }
+
+    /**
+     * Unlinks the tombstones left behind by {@link #remove(long)}. Only the subtrees below a
+     * tombstone are rebuilt, and each one in place: every hash in the subtree of a child at
+     * distance d lies at distance d from the parent, so the live hashes under a tombstone
+     * are bulk loaded into a new subtree that takes its slot. The rest of the tree stays
+     * untouched, and a removed root is kept as a routing node unless no live hash is left
+     * below it. This takes time in proportion to the rebuilt subtrees, so it is left to the
+     * caller to schedule.
+     */
+    @Override
+    public void compact(){
+        if(tombstones == 0) return;
+
+        // Post-order walk over the live nodes: a tombstoned child is not descended into,
+        // since its whole subtree is rebuilt when its parent is compacted.
+        Node[] nodes = new Node[64];
+        int[] next = new int[64];
+        int top = 0;
+        nodes[top++] = root;
+        while(top > 0){
+            Node node = nodes[top - 1];
+            if(next[top - 1] < node.children.length){
+                Node child = node.children[next[top - 1]++];
+                if(child.count == 0) continue;
+                if(top == nodes.length){
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                }
+                nodes[top] = child;
+                next[top] = 0;
+                top++;
+            } else {
+                nodes[--top] = null;
+                compactChildren(node);
+            }
+        }
+        if(root.count == 0 && root.children.length == 0){
+            root = null;
+        }
+        tombstones = root != null && root.count == 0 ? 1 : 0;
+    }
+
+    // Replaces every tombstoned child of a node by a subtree bulk loaded from the live hashes
+    // below it, or drops it if there are none, and updates the size of the node.
+    private static void compactChildren(Node node){
+        Node[] children = node.children;
+        boolean dropped = false;
+        for(int c = 0; c < children.length; c++){
+            if(children[c].count == 0){
+                children[c] = rebuild(children[c]);
+                if(children[c] == null) dropped = true;
+            }
+        }
+
+        if(dropped){
+            // Rebuild the child array and mask without the emptied slots.
+            int kept = 0;
+            for(Node child : children){
+                if(child != null) kept++;
+            }
+            Node[] remaining = kept == 0 ? NO_CHILDREN : new Node[kept];
+            long mask = 0L;
+            long bits = node.mask;
+            int j = 0;
+            for(Node child : children){
+                // The children are in distance order; the one past the mask bits is at 64.
+                int dist = bits != 0 ? Long.numberOfTrailingZeros(bits) : 64;
+                bits &= bits - 1;
+                if(child == null) continue;
+                remaining[j++] = child;
+                if(dist < 64) mask |= 1L << dist;
+            }
+            node.children = remaining;
+            node.mask = mask;
+        }
+        node.size = 1 + subtreeSizes(node.children);
+    }
+
+    // Bulk loads the live hashes of a subtree into a new subtree without tombstones, or
+    // returns null if all of them were removed.
+    private static Node rebuild(Node subtree){
+        long[] values = new long[subtree.size];
+        int[] counts = new int[subtree.size];
+        int n = 0;
+        for(int i = 0, total = collect(new Node[]{subtree}, values, counts, 0); i < total; i++){
+            if(counts[i] > 0){
+                values[n] = values[i];
+                counts[n++] = counts[i];
+            }
+        }
+        if(n == 0) return null;
+
+        // 1. Build from the distinct values, as bulkLoad() does.
+        long[] live = Arrays.copyOf(values, n);
+        Node built = new BuildTask(live, new long[n], new byte[n], 0, n, false).compute();
+
+        // 2. Restore the multiplicities above 1 (rare) by looking their nodes up.
+        for(int i = 0; i < n; i++){
+            if(counts[i] == 1) continue;
+            Node curr = built;
+            int dist;
+            while((dist = Hamming.distanceLong(curr.value, values[i])) != 0){
+                curr = curr.child(dist);
+            }
+            curr.count = counts[i];
+        }
+        return built;
+    }
+
+    // Total size of the given subtrees.
+    private static int subtreeSizes(Node[] children){
+        int total = 0;
+        for(Node child : children) total += child.size;
+        return total;
+    }
+
+    // Copies the values and multiplicities of all nodes in the given subtrees, starting at 'count'.
+    private static int collect(Node[] roots, long[] values, int[] counts, int count){
+        Node[] stack = Arrays.copyOf(roots, Math.max(64, roots.length));
+        int top = roots.length;
+        while(top > 0){
+            Node node = stack[--top];
+            values[count] = node.value;
+            counts[count++] = node.count;
+            if(top + node.children.length > stack.length){
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + node.children.length));
+            }
+            System.arraycopy(node.children, 0, stack, top, node.children.length);
+            top += node.children.length;
+        }
+        return count;
+    }
+
+    /**
+     * Compiles the current contents of this tree into an immutable {@link FrozenBKTree}
+     * backed by flat primitive arrays in breadth-first order. The frozen tree answers the
+     * same queries with far fewer cache misses; later changes to this tree are not reflected.
+     * @return The frozen copy of this tree.
+     */
+    public FrozenBKTree freeze(){
+        // 1. Number the nodes breadth-first. Appending each node's children (already in
+        //    distance order) keeps the children of every node contiguous.
+        List<Node> order = new ArrayList<>();
+        if(root != null) order.add(root);
+        for(int i = 0; i < order.size(); i++){
+            for(Node child : order.get(i).children){
+                order.add(child);
+            }
+        }
+
+        // 2. Copy the values and masks, and record where every node's children start.
+        int n = order.size();
+        long[] values = new long[n];
+        long[] masks = new long[n];
+        long[] removed = new long[(n + 63) >>> 6];
+        int[] firstChild = new int[n + 1];
+        int[] counts = new int[n];
+        int next = 1; // node 0 is the root, its children start right after it
+        for(int i = 0; i < n; i++){
+            Node node = order.get(i);
+            values[i] = node.value;
+            masks[i] = node.mask;
+            if(node.count == 0) removed[i >>> 6] |= 1L << i;
+            counts[i] = node.count;
+            firstChild[i] = next;
+            next += node.children.length;
+        }
+        firstChild[n] = next;
+
+        return new FrozenBKTree(values, masks, removed, firstChild, counts);
+    }
+
+    /**
+     * Rebuilds a BKTree from the flat arrays of a frozen tree (see {@link #freeze()}), read
+     * from wherever they are stored, e.g. a mapped file. The nodes, their multiplicities and
+     * tombstones come back exactly as they were frozen.
+     * @throws IllegalArgumentException if a node's child range does not match its mask.
+     */
+    static BKTree thaw(int n, LongBuffer values, LongBuffer masks, IntBuffer counts, IntBuffer firstChild){
+        BKTree tree = new BKTree();
+        if(n == 0) return tree;
+
+        // 1. Create every node; breadth-first order puts children after their parent.
+        Node[] nodes = new Node[n];
+        for(int i = 0; i < n; i++){
+            Node node = new Node(values.get(i));
+            node.mask = masks.get(i);
+            node.count = counts.get(i);
+            if(node.count == 0) tree.tombstones++;
+            nodes[i] = node;
+        }
+
+        // 2. Link the children, and sum the subtree sizes bottom-up (in reverse order).
+        for(int i = n - 1; i >= 0; i--){
+            Node node = nodes[i];
+            int first = firstChild.get(i);
+            int children = firstChild.get(i + 1) - first;
+            int bits = Long.bitCount(node.mask);
+            if(children != bits && children != bits + 1){
+                throw new IllegalArgumentException("Child range of node " + i + " does not match its mask");
+            }
+            if(children > 0){
+                node.children = Arrays.copyOfRange(nodes, first, first + children);
+                for(Node child : node.children){
+                    node.size += child.size;
+                }
+            }
+        }
+        tree.root = nodes[0];
+        return tree;
+    }
+
+    /**
+     * Returns a mask with the bits of the distances in [lo, hi] set, clamped to 0..63.
+     */
+    static long rangeMask(int lo, int hi) {
+        if (lo > 63 || hi < lo) return 0L;
+        return (hi >= 63 ? -1L : (1L << (hi + 1)) - 1) & (-1L << lo);
+    }
+
+    /**
+     * Returns a mask with the bits of all distances strictly below 'lo' set.
+     */
+    static long lowMask(int lo) {
+        return lo > 63 ? -1L : (1L << lo) - 1;
+    }
+
 }
@@ -0,0 +1,17 @@
+package io.github.yuvraj0028.bktree;
+
+/**
+ * Callback that receives the matches of a batch search, tagged with the position of the
+ * query they belong to, so that one traversal can serve many queries without boxing.
+ */
+@FunctionalInterface
+public interface BatchHashVisitor {
+
+    /**
+     * Called for every stored hash that lies within the search distance of a query.
+     * @param query The index of the matching query in the array passed to the search.
+     * @param hash The matching hash.
+     * @param distance The Hamming distance between the matching hash and the query.
+     */
+    void visit(int query, long hash, int distance);
+}
@@ -0,0 +1,222 @@
+package io.github.yuvraj0028.bktree;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.github.yuvraj0028.index.HashVisitor;
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * A thread-safe, lock-free variant of {@link BKTree} that any number of threads can add to
+ * and search at the same time. Children are attached with a compare-and-set on a slot per
+ * distance, so concurrent inserts never block each other and searches never wait at all.
+ * A search sees every hash whose {@link #add(long)} completed before the search started.
+ */
+public class ConcurrentBKTree {
+
+    // One slot per possible Hamming distance between two 64-bit hashes (0..64).
+    private static final int SLOT_COUNT = 65;
+
+    private static final VarHandle ROOT;
+    private static final VarHandle SLOTS;
+    private static final VarHandle MASK;
+    private static final VarHandle COUNT;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Node[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ROOT = lookup.findVarHandle(ConcurrentBKTree.class, "root", Node.class);
+            SLOTS = lookup.findVarHandle(Node.class, "slots", Node[].class);
+            MASK = lookup.findVarHandle(Node.class, "mask", long.class);
+            COUNT = lookup.findVarHandle(Node.class, "count", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Node class to depict the tree and its nodes [children]
+    private static class Node {
+        // The value (e.g., the 64-bit image hash) stored at this node.
+        final long value;
+
+        // Children indexed by their distance from this node's value. Allocated on the first
+        // attached child, so leaf nodes do not pay for it.
+        volatile Node[] slots;
+
+        // Occupancy bitmask of the children over distances 0..63. A bit is set right after
+        // its slot is filled, and every insert passing through the slot makes sure it is set
+        // before going further down, so completed inserts are always reachable through it.
+        volatile long mask;
+
+        // Multiplicity: how many times the value was added, so exact duplicates share one node.
+        volatile int count = 1;
+
+        Node(long value) {this.value = value;}
+    }
+
+    // initial state: the root of the tree
+    private volatile Node root;
+
+    // Number of hashes added so far.
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Constructs an empty ConcurrentBKTree.
+     */
+    public ConcurrentBKTree() {}
+
+    /**
+     * Adds an image hash (long value) to the tree. Safe to call from many threads at once.
+     * @param value The 64-bit hash of the image to add.
+     */
+    public void add(long value) {
+        Node fresh = null;
+
+        // Case 1: Tree is empty. The first thread to install a root wins.
+        Node curr = root;
+        if (curr == null) {
+            fresh = new Node(value);
+            if (ROOT.compareAndSet(this, null, fresh)) {
+                count.increment();
+                return;
+            }
+            curr = root;
+        }
+
+        // Traverse the tree until an empty slot is claimed for the new node.
+        while (true) {
+            // 1. The distance to the current node selects the slot.
+            int dist = Hamming.distanceLong(curr.value, value);
+
+            // An exact duplicate only adds to the multiplicity of the existing node.
+            if (dist == 0) {
+                COUNT.getAndAdd(curr, 1);
+                count.increment();
+                return;
+            }
+
+            Node[] slots = curr.slots;
+            if (slots == null) {
+                SLOTS.compareAndSet(curr, null, new Node[SLOT_COUNT]);
+                slots = curr.slots;
+            }
+
+            // 2. Claim the slot. If another thread got there first, follow its node instead.
+            Node child = (Node) SLOT.getAcquire(slots, dist);
+            if (child == null) {
+                if (fresh == null) fresh = new Node(value);
+                child = (Node) SLOT.compareAndExchange(slots, dist, null, fresh);
+                if (child == null) {
+                    publish(curr, dist);
+                    count.increment();
+                    return; // Insertion complete.
+                }
+            }
+
+            // 3. Help publish the slot before descending, so that anything inserted below it
+            //    is never hidden from a search by a mask bit its owner has not set yet.
+            publish(curr, dist);
+            curr = child;
+        }
+    }
+
+    // Sets the mask bit of an occupied slot (the distance-64 slot has no bit).
+    private static void publish(Node node, int dist) {
+        if (dist < 64 && (node.mask & (1L << dist)) == 0) {
+            MASK.getAndBitwiseOr(node, 1L << dist);
+        }
+    }
+
+    /**
+     * Returns how many times an image hash has been added to the tree.
+     * @param value The 64-bit hash to look up.
+     * @return The number of copies of the hash, 0 if it was never added.
+     */
+    public int multiplicity(long value) {
+        Node curr = root;
+        while (curr != null) {
+            int dist = Hamming.distanceLong(curr.value, value);
+            if (dist == 0) return curr.count;
+            Node[] slots = curr.slots;
+            curr = slots == null ? null : (Node) SLOT.getAcquire(slots, dist);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of hashes added to the tree.
+     * @return The hash count.
+     */
+    public int size() {
+        return count.intValue();
+    }
+
+    /**
+     * Searches for image hashes in the tree that are within a specified maximum distance
+     * (maxDist) of the query value. Same contract as {@link BKTree#search(long, int)}.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return A list of hashes from the tree that are within maxDist of the query value.
+     */
+    public List<Long> search(long value, int maxDist) {
+        List<Long> res = new ArrayList<>();
+        search(value, maxDist, (hash, dist) -> res.add(hash));
+        return res;
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor. Same contract as {@link BKTree#search(long, int, HashVisitor)}.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its distance; returning false stops the search.
+     * @return true if the whole tree was searched, false if the visitor stopped it early.
+     */
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        Node start = root;
+        if (start == null) return true;
+
+        // Nodes still to visit, used as a stack (Depth-First Search).
+        Node[] stack = new Node[64];
+        int top = 0;
+        stack[top++] = start;
+
+        while (top > 0) {
+            Node curr = stack[--top];
+            stack[top] = null;
+
+            // 1. Distance between the current node and the query decides a match.
+            int dist = Hamming.distanceLong(curr.value, value);
+            if (dist <= maxDist && !visitor.visit(curr.value, dist)) {
+                return false;
+            }
+
+            Node[] slots = curr.slots;
+            if (slots == null) continue;
+
+            // 2. Only children in [dist - maxDist, dist + maxDist] can contain matches
+            //    (triangle inequality); the mask is read once and every set bit has its slot filled.
+            int lo = Math.max(0, dist - maxDist);
+            int hi = dist + maxDist;
+            long inRange = curr.mask & BKTree.rangeMask(lo, hi);
+            int needed = top + Long.bitCount(inRange) + 1;
+            if (needed > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, needed));
+            }
+            while (inRange != 0) {
+                stack[top++] = (Node) SLOT.getAcquire(slots, Long.numberOfTrailingZeros(inRange));
+                inRange &= inRange - 1;
+            }
+            if (hi >= 64) {
+                Node complement = (Node) SLOT.getAcquire(slots, 64);
+                if (complement != null) stack[top++] = complement;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.yuvraj0028.bktree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.yuvraj0028.index.HashVisitor;
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * An immutable, read-only form of a {@link BKTree} compiled into flat primitive arrays.
+ * Nodes are laid out in breadth-first order, so the children of every node sit next to
+ * each other (in ascending distance order) and a traversal walks contiguous memory instead
+ * of chasing object pointers. Instances are created with {@link BKTree#freeze()}.
+ */
+public final class FrozenBKTree {
+
+    // The value (e.g., the 64-bit image hash) of every node, indexed by node number.
+    final long[] values;
+
+    // Occupancy bitmask of every node's children over distances 0..63 (same as BKTree).
+    final long[] masks;
+
+    // Bitset of the nodes that were removed (tombstones): they only route searches.
+    final long[] removed;
+
+    // Multiplicity of every node's value (0 for tombstones), which searches never need but
+    // a BKTree rebuilt from a file does (see MappedBKTree).
+    final int[] counts;
+
+    // Index of the first child of every node. The children of node 'i' are the nodes
+    // firstChild[i] .. firstChild[i + 1] - 1, so the array has one trailing sentinel entry.
+    // A child at distance 64 has no mask bit and, when present, is the last of the range.
+    final int[] firstChild;
+
+    // Growable stack of node numbers, reused by every search on the same thread
+    // (also by MappedBKTree, which shares the layout).
+    static final class TraversalStack {
+        int[] nodes = new int[64];
+        boolean inUse;
+    }
+
+    static final ThreadLocal<TraversalStack> STACKS = ThreadLocal.withInitial(TraversalStack::new);
+
+    FrozenBKTree(long[] values, long[] masks, long[] removed, int[] firstChild, int[] counts) {
+        this.values = values;
+        this.masks = masks;
+        this.removed = removed;
+        this.firstChild = firstChild;
+        this.counts = counts;
+    }
+
+    /**
+     * Returns the number of nodes in this tree, including removed hashes that still
+     * route searches.
+     * @return The node count.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Searches for image hashes in the tree that are within a specified maximum distance
+     * (maxDist) of the query value. Same contract as {@link BKTree#search(long, int)}.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return A list of hashes from the tree that are within maxDist of the query value.
+     */
+    public List<Long> search(long value, int maxDist) {
+        List<Long> res = new ArrayList<>();
+        search(value, maxDist, (hash, dist) -> res.add(hash));
+        return res;
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor. Same contract as {@link BKTree#search(long, int, HashVisitor)}.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its distance; returning false stops the search.
+     * @return true if the whole tree was searched, false if the visitor stopped it early.
+     */
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        if (values.length == 0) return true;
+
+        // Borrow this thread's stack unless a search on this thread already holds it.
+        TraversalStack holder = STACKS.get();
+        if (holder.inUse) holder = new TraversalStack();
+        holder.inUse = true;
+        try {
+            return search(value, maxDist, visitor, holder);
+        } finally {
+            holder.inUse = false;
+        }
+    }
+
+    private boolean search(long value, int maxDist, HashVisitor visitor, TraversalStack holder) {
+        // Node numbers still to visit, used as a stack (Depth-First Search).
+        int[] stack = holder.nodes;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int curr = stack[--top];
+
+            // 1. Distance between the current node and the query decides a match.
+            int dist = Hamming.distanceLong(values[curr], value);
+            if (dist <= maxDist && (removed[curr >>> 6] & (1L << curr)) == 0
+                    && !visitor.visit(values[curr], dist)) {
+                return false;
+            }
+
+            // 2. Only children in [dist - maxDist, dist + maxDist] can contain matches
+            //    (triangle inequality), and they form one contiguous run of node numbers.
+            int lo = Math.max(0, dist - maxDist);
+            int hi = dist + maxDist;
+            long mask = masks[curr];
+            int first = firstChild[curr];
+            int end = firstChild[curr + 1];
+
+            int from = first + Long.bitCount(mask & BKTree.lowMask(lo));
+            int to = from + Long.bitCount(mask & BKTree.rangeMask(lo, hi));
+            // The distance-64 child is the one entry beyond the masked children.
+            if (hi >= 64 && end - first > Long.bitCount(mask)) {
+                to = end;
+            }
+
+            if (top + (to - from) > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + (to - from)));
+                holder.nodes = stack;
+            }
+            for (int child = from; child < to; child++) {
+                stack[top++] = child;
+            }
+        }
+        return true;
+    }
+}
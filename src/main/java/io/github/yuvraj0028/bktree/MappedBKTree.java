@@ -0,0 +1,525 @@
+package io.github.yuvraj0028.bktree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+import io.github.yuvraj0028.index.HashIndex;
+import io.github.yuvraj0028.index.HashVisitor;
+import io.github.yuvraj0028.index.NeighborHashSet;
+import io.github.yuvraj0028.models.HashType;
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * A BK-Tree searched in place from a memory-mapped file. The file holds the flat arrays of a
+ * {@link FrozenBKTree}, so opening it only maps the file and checks its header and child
+ * offsets: nothing is deserialized, and the operating system pages the tree in as searches
+ * touch it. The checksum is verified only on request, since it reads the whole file.
+ * <p>
+ * The file itself is never modified. Hashes added or removed after opening are kept in a
+ * small BKTree and a hash set next to it, and every search combines them with the file;
+ * {@link #toBKTree()} merges both into a regular BKTree, e.g. before writing a new file.
+ * <p>
+ * File layout (all numbers little-endian):
+ * <pre>
+ *   int  magic ("BKTF")       int  format version
+ *   int  HashType ordinal     int  node count (n)
+ *   long CRC32C of everything after the header
+ *   long[n]            node values
+ *   long[n]            child masks
+ *   long[(n + 63) / 64] removed-node bitset
+ *   int[n + 1]         first-child offsets
+ *   int[n]             multiplicity of every value (0 for removed nodes)
+ * </pre>
+ * Each array is mapped on its own, and a mapping is limited to 2 GB, so a tree may hold up to
+ * 2^28 - 1 (about 268 million) nodes.
+ * <p>
+ * A file is replaced atomically: processes that have mapped the previous version keep
+ * reading it until they open the file again.
+ */
+public final class MappedBKTree implements HashIndex {
+
+    private static final int MAGIC = 0x424B5446; // "BKTF"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+
+    // Largest node count whose arrays of longs can each be mapped in one buffer.
+    private static final int MAX_NODES = Integer.MAX_VALUE / Long.BYTES;
+
+    // The mapped file, for error messages.
+    private final Path file;
+
+    // The hash type the tree was written for, and its node count.
+    private final HashType hashType;
+    private final int size;
+
+    // Views over the mapped arrays, with the same meaning as in FrozenBKTree.
+    private final LongBuffer values;
+    private final LongBuffer masks;
+    private final LongBuffer removed;
+    private final IntBuffer firstChild;
+    private final IntBuffer counts;
+
+    // Number of hashes of the file that are not removed.
+    private final int liveInFile;
+
+    // Hashes added since the file was opened (possibly ones the file holds too, whose
+    // multiplicity they raise), and hashes of the file removed since.
+    private final BKTree added = new BKTree();
+    private final NeighborHashSet dropped = new NeighborHashSet();
+
+    private MappedBKTree(Path file, HashType hashType, int size, LongBuffer values, LongBuffer masks,
+                         LongBuffer removed, IntBuffer firstChild, IntBuffer counts) {
+        this.file = file;
+        this.hashType = hashType;
+        this.size = size;
+        this.values = values;
+        this.masks = masks;
+        this.removed = removed;
+        this.firstChild = firstChild;
+        this.counts = counts;
+
+        int removedCount = 0;
+        for (int w = 0; w < removed.limit(); w++) {
+            removedCount += Long.bitCount(removed.get(w));
+        }
+        this.liveInFile = size - removedCount;
+    }
+
+    /**
+     * Writes a frozen tree to a file that {@link #open(Path)} can map. An existing file is
+     * replaced atomically: the tree is written to a temporary file in the same directory,
+     * then moved over it, so the file is never seen truncated or half written (a process
+     * that maps a file being truncated crashes when it reads past the new end).
+     * @param tree The frozen tree to write.
+     * @param hashType The type of the hashes stored in the tree, recorded in the header.
+     * @param file The file to write.
+     * @throws IllegalArgumentException if the tree has more nodes than a file can map.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(FrozenBKTree tree, HashType hashType, Path file) throws IOException {
+        if (tree.values.length > MAX_NODES) {
+            throw new IllegalArgumentException("BK-Tree too large to map: " + tree.values.length
+                    + " nodes, at most " + MAX_NODES);
+        }
+
+        // 1. A new name next to the file, so that the move below stays on one file system.
+        Path target = file.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            writeTo(tree, hashType, temp);
+            // 2. Replace the file in one step.
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static void writeTo(FrozenBKTree tree, HashType hashType, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            // 1. The arrays go after the header, through one reusable buffer that also
+            //    feeds the checksum.
+            CRC32C crc = new CRC32C();
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_BYTES);
+            writeLongs(channel, buf, crc, tree.values);
+            writeLongs(channel, buf, crc, tree.masks);
+            writeLongs(channel, buf, crc, tree.removed);
+            writeInts(channel, buf, crc, tree.firstChild);
+            writeInts(channel, buf, crc, tree.counts);
+            flush(channel, buf, crc);
+
+            // 2. The header comes last, once the checksum is known.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(hashType.ordinal()).putInt(tree.values.length)
+                    .putLong(crc.getValue()).flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += channel.write(header, pos);
+            }
+
+            // 3. On disk before the move makes it visible under the real name.
+            channel.force(true);
+        }
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buf, CRC32C crc, long[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            int len = Math.min(data.length - off, buf.remaining() / Long.BYTES);
+            if (len == 0) {
+                flush(channel, buf, crc);
+                continue;
+            }
+            buf.asLongBuffer().put(data, off, len);
+            buf.position(buf.position() + len * Long.BYTES);
+            off += len;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buf, CRC32C crc, int[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            int len = Math.min(data.length - off, buf.remaining() / Integer.BYTES);
+            if (len == 0) {
+                flush(channel, buf, crc);
+                continue;
+            }
+            buf.asIntBuffer().put(data, off, len);
+            buf.position(buf.position() + len * Integer.BYTES);
+            off += len;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Maps a file written by {@link #write(FrozenBKTree, HashType, Path)} and checks its
+     * header, length and child offsets, without reading the rest of the tree. The returned
+     * tree reads the file in place.
+     * @param file The file to open.
+     * @return The mapped tree.
+     * @throws IOException if the file cannot be read, or is not a valid tree file.
+     */
+    public static MappedBKTree open(Path file) throws IOException {
+        return open(file, false);
+    }
+
+    /**
+     * Maps a file written by {@link #write(FrozenBKTree, HashType, Path)} and checks its
+     * header, length and child offsets, and optionally its checksum. The returned tree reads
+     * the file in place.
+     * @param file The file to open.
+     * @param verify Whether to verify the checksum, which reads the whole file once.
+     * @return The mapped tree.
+     * @throws IOException if the file cannot be read, or is not a valid tree file.
+     */
+    public static MappedBKTree open(Path file, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // 1. Header: format, hash type and node count.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Truncated BK-Tree file: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a BK-Tree file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported BK-Tree file version " + version + ": " + file);
+            }
+            int typeOrdinal = header.getInt();
+            int n = header.getInt();
+            long checksum = header.getLong();
+            HashType[] types = HashType.values();
+            if (typeOrdinal < 0 || typeOrdinal >= types.length || n < 0 || n > MAX_NODES) {
+                throw new IOException("Corrupt BK-Tree file header: " + file);
+            }
+
+            // 2. The file must be exactly as long as the arrays the header announces.
+            long words = (n + 63L) >>> 6;
+            long valuesAt = HEADER_BYTES;
+            long masksAt = valuesAt + (long) n * Long.BYTES;
+            long removedAt = masksAt + (long) n * Long.BYTES;
+            long firstChildAt = removedAt + words * Long.BYTES;
+            long countsAt = firstChildAt + (n + 1L) * Integer.BYTES;
+            long end = countsAt + (long) n * Integer.BYTES;
+            if (channel.size() != end) {
+                throw new IOException("Truncated BK-Tree file: " + file);
+            }
+
+            // 3. Map every array, and on request verify the checksum over all of them.
+            ByteBuffer values = map(channel, valuesAt, masksAt);
+            ByteBuffer masks = map(channel, masksAt, removedAt);
+            ByteBuffer removed = map(channel, removedAt, firstChildAt);
+            ByteBuffer firstChild = map(channel, firstChildAt, countsAt);
+            ByteBuffer counts = map(channel, countsAt, end);
+            if (verify) {
+                CRC32C crc = new CRC32C();
+                crc.update(values.duplicate());
+                crc.update(masks.duplicate());
+                crc.update(removed.duplicate());
+                crc.update(firstChild.duplicate());
+                crc.update(counts.duplicate());
+                if (crc.getValue() != checksum) {
+                    throw new IOException("BK-Tree file checksum mismatch: " + file);
+                }
+            }
+
+            // 4. Breadth-first numbering puts the children of every node after it, in ranges
+            //    that follow each other: checking that keeps every search within the file and
+            //    free of cycles, for a single pass over the offsets.
+            IntBuffer offsets = firstChild.asIntBuffer();
+            if (n > 0) {
+                int prev = 1;
+                if (offsets.get(0) != 1) {
+                    throw new IOException("Corrupt BK-Tree file child offsets: " + file);
+                }
+                for (int i = 1; i <= n; i++) {
+                    int next = offsets.get(i);
+                    if (next < prev || next > n || (i < n && next <= i)) {
+                        throw new IOException("Corrupt BK-Tree file child offsets: " + file);
+                    }
+                    prev = next;
+                }
+                if (prev != n) {
+                    throw new IOException("Corrupt BK-Tree file child offsets: " + file);
+                }
+            }
+
+            // The mapping stays valid after the channel is closed.
+            return new MappedBKTree(file, types[typeOrdinal], n, values.asLongBuffer(), masks.asLongBuffer(),
+                    removed.asLongBuffer(), offsets, counts.asIntBuffer());
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long from, long to) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the hash type recorded in the file header.
+     * @return The HashType of the stored hashes.
+     */
+    public HashType hashType() {
+        return hashType;
+    }
+
+    /**
+     * Returns the number of nodes in the file, including removed hashes that still
+     * route searches.
+     * @return The node count.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct hashes currently indexed: those of the file that were
+     * not removed, and those added since it was opened.
+     * @return The hash count.
+     */
+    public int hashCount() {
+        int count = liveInFile - dropped.size();
+        FrozenBKTree overlay = added.freeze();
+        for (int i = 0; i < overlay.values.length; i++) {
+            if (overlay.counts[i] > 0 && !inFile(overlay.values[i])) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Adds an image hash. The file is not modified: the hash is kept in memory until the
+     * tree is written again (see {@link #toBKTree()}).
+     * @param value The 64-bit hash of the image to add.
+     */
+    @Override
+    public void add(long value) {
+        added.add(value);
+    }
+
+    /**
+     * Removes every copy of an image hash. The file is not modified: a hash it holds is
+     * remembered as removed, and searches skip it.
+     * @param value The 64-bit hash of the image to remove.
+     * @return true if the hash was present (and is now removed), false otherwise.
+     */
+    @Override
+    public boolean remove(long value) {
+        boolean found = added.remove(value);
+        if (inFile(value)) {
+            dropped.add(value);
+            found = true;
+        }
+        return found;
+    }
+
+    // Whether the file holds the hash, not removed in the file nor since it was opened.
+    private boolean inFile(long value) {
+        return !dropped.contains(value) && !searchFile(value, 0, (hash, dist) -> false);
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor. Same contract as {@link BKTree#search(long, int, HashVisitor)}.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its distance; returning false stops the search.
+     * @return true if the whole tree was searched, false if the visitor stopped it early.
+     * @throws UncheckedIOException if the search runs into a corrupt part of the file.
+     */
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        // 1. The file, without the hashes removed since it was opened.
+        HashVisitor fromFile = dropped.size() == 0 ? visitor
+                : (hash, dist) -> dropped.contains(hash) || visitor.visit(hash, dist);
+        if (!searchFile(value, maxDist, fromFile)) return false;
+
+        // 2. The hashes added since, but not those the file already reported.
+        return added.search(value, maxDist, (hash, dist) -> inFile(hash) || visitor.visit(hash, dist));
+    }
+
+    private boolean searchFile(long value, int maxDist, HashVisitor visitor) {
+        if (size == 0) return true;
+
+        // Borrow this thread's stack unless a search on this thread already holds it.
+        FrozenBKTree.TraversalStack holder = FrozenBKTree.STACKS.get();
+        if (holder.inUse) holder = new FrozenBKTree.TraversalStack();
+        holder.inUse = true;
+        try {
+            return searchFile(value, maxDist, visitor, holder);
+        } finally {
+            holder.inUse = false;
+        }
+    }
+
+    private boolean searchFile(long value, int maxDist, HashVisitor visitor, FrozenBKTree.TraversalStack holder) {
+        // Node numbers still to visit, used as a stack (Depth-First Search).
+        int[] stack = holder.nodes;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int curr = stack[--top];
+
+            // 1. Distance between the current node and the query decides a match.
+            long node = values.get(curr);
+            int dist = Hamming.distanceLong(node, value);
+            if (dist <= maxDist && (removed.get(curr >>> 6) & (1L << curr)) == 0
+                    && !visitor.visit(node, dist)) {
+                return false;
+            }
+
+            // 2. Only children in [dist - maxDist, dist + maxDist] can contain matches,
+            //    and they form one contiguous run of node numbers (see FrozenBKTree).
+            int lo = Math.max(0, dist - maxDist);
+            int hi = dist + maxDist;
+            long mask = masks.get(curr);
+            int first = firstChild.get(curr);
+            int end = firstChild.get(curr + 1);
+
+            int from = first + Long.bitCount(mask & BKTree.lowMask(lo));
+            int to = from + Long.bitCount(mask & BKTree.rangeMask(lo, hi));
+            if (hi >= 64 && end - first > Long.bitCount(mask)) {
+                to = end;
+            }
+            if (to > end) {
+                // open() checked the offsets, but not that every mask matches its range.
+                throw new UncheckedIOException(new IOException("Corrupt BK-Tree file child mask: " + file));
+            }
+
+            if (top + (to - from) > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + (to - from)));
+                holder.nodes = stack;
+            }
+            for (int child = from; child < to; child++) {
+                stack[top++] = child;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the time a search would take, as {@link BKTree#estimateSearchCost} does. The
+     * file holds no subtree sizes, so each random descent picks an in-range child uniformly
+     * and multiplies its weight by their number (Knuth's original estimator).
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return The estimated search time in nanoseconds.
+     */
+    @Override
+    public double estimateSearchCost(long value, int maxDist) {
+        double cost = added.estimateSearchCost(value, maxDist);
+        if (size == 0 || maxDist < 0) return cost;
+
+        // The descents are seeded from the query, so the same query gets the same estimate.
+        long seed = value ^ ((long) maxDist << 32);
+        double visited = 0;
+        for (int probe = 0; probe < BKTree.ESTIMATE_DESCENTS; probe++) {
+            int curr = 0;
+            double weight = 1;
+            while (true) {
+                visited += weight;
+
+                // Same pruning as search(), on the contiguous run of in-range children.
+                int dist = Hamming.distanceLong(values.get(curr), value);
+                int lo = Math.max(0, dist - maxDist);
+                int hi = dist + maxDist;
+                long mask = masks.get(curr);
+                int first = firstChild.get(curr);
+                int end = firstChild.get(curr + 1);
+                int from = first + Long.bitCount(mask & BKTree.lowMask(lo));
+                int to = Math.min(end, from + Long.bitCount(mask & BKTree.rangeMask(lo, hi)));
+                if (hi >= 64 && end - first > Long.bitCount(mask)) {
+                    to = end;
+                }
+                if (to <= from) break;
+
+                seed += 0x9E3779B97F4A7C15L;
+                weight *= to - from;
+                curr = from + (int) Long.remainderUnsigned(BKTree.mix(seed), to - from);
+            }
+        }
+        return cost + visited / BKTree.ESTIMATE_DESCENTS * BKTree.NODE_VISIT_NANOS;
+    }
+
+    /**
+     * Rebuilds a regular, in-memory BKTree with the same nodes, multiplicities and tombstones
+     * as the file, then applies the additions and removals made since it was opened.
+     * @return A new BKTree holding the current contents of this tree.
+     * @throws IOException if the file's child masks do not match its child offsets.
+     */
+    public BKTree toBKTree() throws IOException {
+        BKTree tree;
+        try {
+            tree = BKTree.thaw(size, values, masks, counts, firstChild);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt BK-Tree file: " + file, e);
+        }
+
+        // 1. Hashes of the file removed since it was opened (including those added again
+        //    since: the additions below bring them back with their new multiplicity).
+        if (dropped.size() > 0) {
+            for (int i = 0; i < size; i++) {
+                long hash = values.get(i);
+                if ((removed.get(i >>> 6) & (1L << i)) == 0 && dropped.contains(hash)) {
+                    tree.remove(hash);
+                }
+            }
+        }
+
+        // 2. Hashes added since, with their multiplicity (on top of the file's, for a hash
+        //    the file still holds).
+        FrozenBKTree overlay = added.freeze();
+        for (int i = 0; i < overlay.values.length; i++) {
+            for (int c = 0; c < overlay.counts[i]; c++) {
+                tree.add(overlay.values[i]);
+            }
+        }
+        return tree;
+    }
+}
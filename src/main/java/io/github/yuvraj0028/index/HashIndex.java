@@ -0,0 +1,142 @@
+package io.github.yuvraj0028.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.OptionalLong;
+
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Common contract of the structures that index 64-bit image hashes for Hamming-distance
+ * search (BK-Tree, multi-index hashing, ...), so the service can use any of them per HashType.
+ * A hash that was added several times is reported once by every search.
+ */
+public interface HashIndex {
+
+    /**
+     * Adds an image hash to the index.
+     * @param value The 64-bit hash of the image to add.
+     */
+    void add(long value);
+
+    /**
+     * Adds an image hash unless a stored hash lies within maxDist of it. By default this
+     * searches first and adds afterwards; indexes that can do both in one pass override it.
+     * @param value The 64-bit hash of the image to add.
+     * @param maxDist The maximum Hamming distance at which a stored hash counts as a duplicate.
+     * @return A stored hash within maxDist of the value (the value is then not added), or
+     *         empty if the value was added.
+     */
+    default OptionalLong addIfAbsentWithin(long value, int maxDist) {
+        long[] match = new long[1];
+        if (!search(value, maxDist, (hash, dist) -> {
+            match[0] = hash;
+            return false;
+        })) {
+            return OptionalLong.of(match[0]);
+        }
+        add(value);
+        return OptionalLong.empty();
+    }
+
+    /**
+     * Removes every copy of an image hash from the index.
+     * @param value The 64-bit hash of the image to remove.
+     * @return true if the hash was present (and is now removed), false otherwise.
+     */
+    boolean remove(long value);
+
+    /**
+     * Returns whether removals have left enough dead entries behind that the index should be
+     * compacted. Indexes that remove entries outright never need it.
+     * @return true if {@link #compact()} is worth running.
+     */
+    default boolean needsCompaction() {
+        return false;
+    }
+
+    /**
+     * Drops the dead entries left behind by removals. This may take time in proportion to
+     * the index, so it never runs implicitly: callers schedule it, e.g. when
+     * {@link #needsCompaction()} says so.
+     */
+    default void compact() {}
+
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor, without collecting them.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param visitor Receives each match with its distance; returning false stops the search.
+     * @return true if the whole index was searched, false if the visitor stopped it early.
+     */
+    boolean search(long value, int maxDist, HashVisitor visitor);
+
+    /**
+     * Estimates how long a search within maxDist of the query value would take, so that
+     * a query planner can compare index structures. Implementations may inspect the parts
+     * of the index the search would touch, but never report matches.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return The estimated search time in nanoseconds, on a typical machine.
+     */
+    double estimateSearchCost(long value, int maxDist);
+
+    /**
+     * Searches for image hashes that are within a specified maximum distance (maxDist)
+     * of the query value.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return A list of hashes from the index that are within maxDist of the query value.
+     */
+    default List<Long> search(long value, int maxDist) {
+        List<Long> res = new ArrayList<>();
+        search(value, maxDist, (hash, dist) -> res.add(hash));
+        return res;
+    }
+
+    /**
+     * Counts the image hashes within maxDist of the query value, without collecting them.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return The number of hashes from the index that are within maxDist of the query value.
+     */
+    default int count(long value, int maxDist) {
+        return countUpTo(value, maxDist, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts the image hashes within maxDist of the query value, but stops the search as soon
+     * as limit of them are found; countUpTo(value, maxDist, 1) &gt; 0 checks for any match.
+     * @param value The query hash (image hash) to search for.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @param limit The count at which the search stops.
+     * @return The number of hashes within maxDist of the query value, at most limit.
+     */
+    default int countUpTo(long value, int maxDist, int limit) {
+        if (limit <= 0) return 0;
+        int[] count = {0};
+        search(value, maxDist, (hash, dist) -> ++count[0] < limit);
+        return count[0];
+    }
+
+    /**
+     * Finds the k hashes in the index that are closest to the query value. By default the
+     * search radius is doubled until at least k hashes are found (the k closest are then
+     * among them); indexes with a better strategy override this.
+     * @param value The query hash (image hash) to search for.
+     * @param k The maximum number of hashes to return.
+     * @return Up to k hashes from the index, ordered from the closest to the farthest.
+     */
+    default List<Long> nearest(long value, int k) {
+        List<Long> res = new ArrayList<>();
+        if (k <= 0) return res;
+        for (int radius = 0; ; radius = Math.min(64, Math.max(1, radius * 2))) {
+            res = search(value, radius);
+            if (res.size() >= k || radius == 64) break;
+        }
+        res.sort(Comparator.comparingInt(h -> Hamming.distanceLong(h, value)));
+        return res.size() > k ? new ArrayList<>(res.subList(0, k)) : res;
+    }
+}
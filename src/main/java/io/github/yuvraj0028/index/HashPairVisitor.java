@@ -0,0 +1,17 @@
+package io.github.yuvraj0028.index;
+
+/**
+ * Callback that receives the pairs found by a self-join one at a time, as primitive values,
+ * so that a join over a large collection never has to hold all of its pairs.
+ */
+@FunctionalInterface
+public interface HashPairVisitor {
+
+    /**
+     * Called once for every pair of hashes that lie within the join distance of each other.
+     * @param first One hash of the pair.
+     * @param second The other hash of the pair.
+     * @param distance The Hamming distance between the two hashes.
+     */
+    void visit(long first, long second, int distance);
+}
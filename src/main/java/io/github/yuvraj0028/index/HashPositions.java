@@ -0,0 +1,131 @@
+package io.github.yuvraj0028.index;
+
+import java.util.Arrays;
+
+/**
+ * Distinct 64-bit hashes packed in one array, with a primitive open-addressing table from
+ * every hash to its position in it. Lookups, additions and removals take O(1) without boxing,
+ * and scans stream through the packed array. Shared by the indexes that keep a set of hashes.
+ */
+final class HashPositions {
+
+    // Multiplier of the Fibonacci hashing that spreads similar hashes over the table.
+    private static final long SPREAD = 0x9E3779B97F4A7C15L;
+
+    // The hashes, packed in the first 'size' entries, in no particular order.
+    long[] hashes = new long[16];
+    int size = 0;
+
+    // Linear probing table where a slot holds 1 + the position of a hash in its low bits (0
+    // marks an empty slot) and the hash itself is read from the array, so it costs 4 bytes per
+    // slot and needs no special case for the hash 0. A table of 2^k slots needs k bits for the
+    // positions; the other 32 - k hold a fingerprint of the hash, so a probe reads the array
+    // only when the fingerprint matches, instead of at every occupied slot.
+    private int[] slots = new int[32];
+    private int shift = 64 - 5;
+    private int positionMask = 31;
+
+    // Home slot of a hash: the top bits of its spread value.
+    private int slotOf(long value) {
+        return (int) ((value * SPREAD) >>> shift);
+    }
+
+    // Fingerprint of a hash, in the high bits of a slot: the 32 - k bits of its spread value
+    // right below those that pick the home slot.
+    private int tagOf(long value) {
+        return (int) ((value * SPREAD) >>> 32) << (64 - shift) & ~positionMask;
+    }
+
+    // Slot holding the position of a hash, or the empty slot where it would go.
+    private int find(long value) {
+        int mask = slots.length - 1;
+        int tag = tagOf(value);
+        int i = slotOf(value);
+        for (int slot = slots[i]; slot != 0; slot = slots[i]) {
+            if ((slot & ~positionMask) == tag && hashes[(slot & positionMask) - 1] == value) break;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of slots of the table (a power of two, at least twice the size).
+     */
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns whether a hash is stored.
+     */
+    boolean contains(long value) {
+        return slots[find(value)] != 0;
+    }
+
+    /**
+     * Adds a hash at the end of the array, unless it is already stored.
+     * @return true if the hash was added.
+     */
+    boolean add(long value) {
+        int slot = find(value);
+        if (slots[slot] != 0) return false;
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        hashes[size++] = value;
+        slots[slot] = tagOf(value) | size;
+
+        // Keep the table at most half full so that probe sequences stay short.
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a hash; the last hash of the array takes its position.
+     * @return true if the hash was stored.
+     */
+    boolean remove(long value) {
+        int slot = find(value);
+        if (slots[slot] == 0) return false;
+        int pos = (slots[slot] & positionMask) - 1;
+        removeSlot(slot);
+
+        // Order does not matter: move the last hash into the gap.
+        long last = hashes[--size];
+        if (pos < size) {
+            int moved = find(last);
+            slots[moved] = (slots[moved] & ~positionMask) | (pos + 1);
+            hashes[pos] = last;
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        positionMask = capacity - 1;
+        int mask = capacity - 1;
+        for (int pos = 0; pos < size; pos++) {
+            int i = slotOf(hashes[pos]);
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = tagOf(hashes[pos]) | (pos + 1);
+        }
+    }
+
+    // Backward-shift deletion: move later entries of the probe run into the gap when their
+    // home slot allows it, so no tombstones are needed.
+    private void removeSlot(int i) {
+        int mask = slots.length - 1;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = slotOf(hashes[(slots[j] & positionMask) - 1]);
+            // The entry at j may fill the gap at i unless its home lies cyclically in (i, j].
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                slots[i] = slots[j];
+                i = j;
+            }
+        }
+        slots[i] = 0;
+    }
+}
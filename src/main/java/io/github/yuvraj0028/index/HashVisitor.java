@@ -0,0 +1,17 @@
+package io.github.yuvraj0028.index;
+
+/**
+ * Callback that receives the matches of a search one at a time, as primitive values,
+ * so that a search does not have to box hashes or build a result list.
+ */
+@FunctionalInterface
+public interface HashVisitor {
+
+    /**
+     * Called for every stored hash that lies within the search distance of the query.
+     * @param hash The matching hash.
+     * @param distance The Hamming distance between the matching hash and the query.
+     * @return true to continue the search, false to stop it right away.
+     */
+    boolean visit(long hash, int distance);
+}
@@ -0,0 +1,165 @@
+package io.github.yuvraj0028.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Index that keeps the hashes in one packed array and compares the query against all of them.
+ * There is no pruning, but no pointer chasing either: the scan streams through memory and
+ * costs the same at any search distance, so it beats a tree on small collections and at
+ * large distances, where a tree visits most of its nodes anyway. When the JVM runs with
+ * --add-modules jdk.incubator.vector on Java 19+, the scan compares a whole vector of hashes
+ * per step.
+ */
+public class LinearScanIndex implements HashIndex {
+
+    // Vectorized scan, or null when the Vector API or its lane-wise bit count is missing.
+    private static final ScanKernel VECTOR_KERNEL = loadVectorKernel();
+
+    // Typical time to compare the query against one packed hash, one by one or vectorized.
+    private static final double HASH_COMPARE_NANOS = VECTOR_KERNEL != null ? 0.3 : 0.8;
+
+    // The hashes, packed in one array, with the position of every one of them to skip
+    // duplicates and remove in O(1).
+    private final HashPositions table = new HashPositions();
+
+    /**
+     * A scan of packed hashes that visits, in order, those within a distance of the query.
+     */
+    interface ScanKernel {
+        boolean search(long[] data, int n, long value, int maxDist, HashVisitor visitor);
+    }
+
+    /**
+     * Constructs an empty LinearScanIndex.
+     */
+    public LinearScanIndex() {}
+
+    // The kernel is loaded by name so that this class still links when the incubator module
+    // is not resolved: the lookup then fails and the scalar scan below is used.
+    private static ScanKernel loadVectorKernel() {
+        try {
+            return (ScanKernel) Class.forName("io.github.yuvraj0028.index.VectorScanKernel")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds an image hash to the index. Adding a hash that is already stored has no effect.
+     * @param value The 64-bit hash of the image to add.
+     */
+    @Override
+    public void add(long value) {
+        table.add(value);
+    }
+
+    @Override
+    public boolean remove(long value) {
+        return table.remove(value);
+    }
+
+    /**
+     * Returns the number of distinct hashes stored in the index.
+     * @return The hash count.
+     */
+    public int size() {
+        return table.size;
+    }
+
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        long[] data = table.hashes;
+        int n = table.size;
+        if (VECTOR_KERNEL != null) {
+            return VECTOR_KERNEL.search(data, n, value, maxDist, visitor);
+        }
+        int i = 0;
+
+        // 1. Four hashes per step: the popcounts are independent, so the CPU overlaps them,
+        //    and a block without any match is rejected with a single comparison.
+        for (; i + 4 <= n; i += 4) {
+            int d0 = Long.bitCount(data[i] ^ value);
+            int d1 = Long.bitCount(data[i + 1] ^ value);
+            int d2 = Long.bitCount(data[i + 2] ^ value);
+            int d3 = Long.bitCount(data[i + 3] ^ value);
+            if (Math.min(Math.min(d0, d1), Math.min(d2, d3)) > maxDist) continue;
+
+            if (d0 <= maxDist && !visitor.visit(data[i], d0)) return false;
+            if (d1 <= maxDist && !visitor.visit(data[i + 1], d1)) return false;
+            if (d2 <= maxDist && !visitor.visit(data[i + 2], d2)) return false;
+            if (d3 <= maxDist && !visitor.visit(data[i + 3], d3)) return false;
+        }
+
+        // 2. The remaining (at most three) hashes one by one.
+        for (; i < n; i++) {
+            int dist = Hamming.distanceLong(data[i], value);
+            if (dist <= maxDist && !visitor.visit(data[i], dist)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public double estimateSearchCost(long value, int maxDist) {
+        return estimateScanCost(table.size);
+    }
+
+    /**
+     * Estimates how long a linear scan over the given number of hashes takes, whatever
+     * the query and search distance; lets a planner cost an index it has not built.
+     * @param size The number of hashes scanned.
+     * @return The estimated scan time in nanoseconds.
+     */
+    public static double estimateScanCost(int size) {
+        return size * HASH_COMPARE_NANOS;
+    }
+
+    /**
+     * Finds the k hashes in the index that are closest to the query value, in two scans:
+     * the first counts the hashes at every distance to find the k-th smallest distance,
+     * the second collects the hashes up to it.
+     * @param value The query hash (image hash) to search for.
+     * @param k The maximum number of hashes to return.
+     * @return Up to k hashes from the index, ordered from the closest to the farthest.
+     */
+    @Override
+    public List<Long> nearest(long value, int k) {
+        List<Long> res = new ArrayList<>();
+        long[] hashes = table.hashes;
+        int size = table.size;
+        if (k <= 0 || size == 0) return res;
+        k = Math.min(k, size);
+
+        // 1. Histogram of the distances (0..64).
+        int[] counts = new int[65];
+        for (int i = 0; i < size; i++) {
+            counts[Hamming.distanceLong(hashes[i], value)]++;
+        }
+
+        // 2. Bucket start offsets in the result, up to the distance that completes k.
+        int[] next = new int[65];
+        int cutoff = 0;
+        for (int taken = 0; ; cutoff++) {
+            next[cutoff] = taken;
+            taken += counts[cutoff];
+            if (taken >= k) break;
+        }
+
+        // 3. Place every hash within the cutoff directly at its sorted position.
+        long[] sorted = new long[k];
+        for (int i = 0; i < size; i++) {
+            int dist = Hamming.distanceLong(hashes[i], value);
+            if (dist <= cutoff && next[dist] < k) {
+                sorted[next[dist]++] = hashes[i];
+            }
+        }
+        for (long hash : sorted) {
+            res.add(hash);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,232 @@
+package io.github.yuvraj0028.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds every pair of hashes within a given Hamming distance of each other in one pass over
+ * a collection (a self-join), instead of one search per hash.
+ * <p>
+ * Two hashes within distance r differ in at most r bits, so when the 64 bits are split into
+ * r + 1 blocks they agree exactly on at least one block (pigeonhole principle). For every
+ * block in turn, the hashes are sorted so that equal blocks are adjacent, and only the hashes
+ * sharing a block (a bucket) are compared. A pair is reported by the first block it agrees
+ * on, so every pair is reported exactly once.
+ */
+public final class NearDuplicateJoin {
+
+    // Fewest blocks used. Exact-duplicate joins would work with a single 64-bit block, but
+    // three keep the buckets just as small and the per-block sort no more expensive.
+    private static final int MIN_BLOCKS = 3;
+
+    // Comparisons handed to one fork-join task: small buckets are grouped up to this much
+    // work, and larger buckets are split by rows.
+    private static final long PAIRS_PER_TASK = 1 << 16;
+
+    private NearDuplicateJoin() {}
+
+    /**
+     * Reports every pair of hashes within maxDist of each other, comparing the hashes in
+     * parallel in the pool. The visitor is called from several threads at once, so it must
+     * be thread-safe.
+     * @param hashes The hashes to join; they should be distinct (a repeated hash is paired
+     *               with its copy at distance 0).
+     * @param maxDist The maximum Hamming distance of a reported pair.
+     * @param visitor Receives every pair, once.
+     * @param pool The pool that runs the comparisons.
+     */
+    public static void forEachPair(long[] hashes, int maxDist, HashPairVisitor visitor, ForkJoinPool pool) {
+        if (maxDist < 0 || hashes.length < 2) return;
+
+        // 1. Block layout: r + 1 blocks whose widths differ by at most one bit, or a single
+        //    empty block, which puts every hash in one bucket, when all pairs qualify.
+        int blocks = maxDist >= 64 ? 1 : Math.min(64, Math.max(MIN_BLOCKS, maxDist + 1));
+        long[] blockMasks = new long[blocks];
+        int[] rotations = new int[blocks];
+        int offset = 0;
+        for (int b = 0; b < blocks && maxDist < 64; b++) {
+            int width = 64 / blocks + (b < 64 % blocks ? 1 : 0);
+            blockMasks[b] = ((1L << width) - 1) << offset;
+            offset += width;
+            rotations[b] = offset % 64;
+        }
+
+        // 2. One block at a time: sort, then compare inside the buckets in parallel.
+        long[] sorted = new long[hashes.length];
+        for (int b = 0; b < blocks; b++) {
+            // Rotating the block into the top bits (and flipping the sign bit for an unsigned
+            // order) makes the hashes with equal blocks adjacent after a plain sort.
+            for (int i = 0; i < hashes.length; i++) {
+                sorted[i] = Long.rotateRight(hashes[i], rotations[b]) ^ Long.MIN_VALUE;
+            }
+            Arrays.parallelSort(sorted);
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = Long.rotateLeft(sorted[i] ^ Long.MIN_VALUE, rotations[b]);
+            }
+
+            Block block = new Block(sorted, blockMasks, b, maxDist, visitor);
+            List<ForkJoinTask<?>> tasks = block.tasks();
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+        }
+    }
+
+    /**
+     * Groups hashes into clusters of near-duplicates: two hashes are in the same cluster if
+     * a chain of hashes, each within maxDist of the next, links them (connected components).
+     * @param hashes The hashes to group; they should be distinct.
+     * @param maxDist The maximum Hamming distance between two linked hashes.
+     * @param pool The pool that runs the join.
+     * @return For every hash, the position (in hashes) of its cluster's representative; two
+     *         hashes are in the same cluster exactly when their entries are equal.
+     */
+    public static int[] clusters(long[] hashes, int maxDist, ForkJoinPool pool) {
+        // Position of every hash, found by binary search in a sorted copy.
+        long[] order = hashes.clone();
+        Arrays.sort(order);
+        int[] positions = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            positions[Arrays.binarySearch(order, hashes[i])] = i;
+        }
+
+        UnionFind components = new UnionFind(hashes.length);
+        forEachPair(hashes, maxDist, (first, second, distance) -> components.union(
+                positions[Arrays.binarySearch(order, first)], positions[Arrays.binarySearch(order, second)]), pool);
+
+        int[] roots = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            roots[i] = components.find(i);
+        }
+        return roots;
+    }
+
+    // The sorted hashes of one block, and the comparisons to run inside its buckets.
+    private static final class Block {
+        final long[] sorted;
+        final long[] blockMasks;
+        final int block;
+        final int maxDist;
+        final HashPairVisitor visitor;
+
+        Block(long[] sorted, long[] blockMasks, int block, int maxDist, HashPairVisitor visitor) {
+            this.sorted = sorted;
+            this.blockMasks = blockMasks;
+            this.block = block;
+            this.maxDist = maxDist;
+            this.visitor = visitor;
+        }
+
+        // Cuts the buckets into tasks of about PAIRS_PER_TASK comparisons each.
+        List<ForkJoinTask<?>> tasks() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            long mask = blockMasks[block];
+            int groupFrom = 0;
+            long groupWork = 0;
+            for (int start = 0, end; start < sorted.length; start = end) {
+                end = start + 1;
+                while (end < sorted.length && ((sorted[end] ^ sorted[start]) & mask) == 0) end++;
+
+                long size = end - start;
+                groupWork += size * (size - 1) / 2;
+                if (groupWork < PAIRS_PER_TASK) continue;
+
+                if (size * (size - 1) / 2 >= PAIRS_PER_TASK) {
+                    // A large bucket: flush the small ones before it, then split it by rows.
+                    if (groupFrom < start) tasks.add(buckets(groupFrom, start));
+                    int bucketStart = start;
+                    int bucketEnd = end;
+                    long rowWork = 0;
+                    int rowFrom = start;
+                    for (int row = start; row < end; row++) {
+                        rowWork += end - row - 1;
+                        if (rowWork >= PAIRS_PER_TASK || row == end - 1) {
+                            int from = rowFrom;
+                            int to = row + 1;
+                            tasks.add(ForkJoinTask.adapt(() -> compare(bucketStart, bucketEnd, from, to)));
+                            rowFrom = row + 1;
+                            rowWork = 0;
+                        }
+                    }
+                } else {
+                    tasks.add(buckets(groupFrom, end));
+                }
+                groupFrom = end;
+                groupWork = 0;
+            }
+            if (groupFrom < sorted.length) tasks.add(buckets(groupFrom, sorted.length));
+            return tasks;
+        }
+
+        // Task comparing all the pairs inside the whole buckets of [from, to).
+        private ForkJoinTask<?> buckets(int from, int to) {
+            long mask = blockMasks[block];
+            return ForkJoinTask.adapt(() -> {
+                for (int start = from, end; start < to; start = end) {
+                    end = start + 1;
+                    while (end < to && ((sorted[end] ^ sorted[start]) & mask) == 0) end++;
+                    compare(start, end, start, end);
+                }
+            });
+        }
+
+        // Compares rows [rowFrom, rowTo) of the bucket [start, end) with the rows after them.
+        private void compare(int start, int end, int rowFrom, int rowTo) {
+            for (int i = rowFrom; i < rowTo; i++) {
+                long a = sorted[i];
+                for (int j = i + 1; j < end; j++) {
+                    long diff = a ^ sorted[j];
+                    int dist = Long.bitCount(diff);
+                    if (dist <= maxDist && !agreesEarlier(diff)) {
+                        visitor.visit(a, sorted[j], dist);
+                    }
+                }
+            }
+        }
+
+        // Whether two hashes (given by their XOR) agree on an earlier block, which reports them.
+        private boolean agreesEarlier(long diff) {
+            for (int c = 0; c < block; c++) {
+                if ((diff & blockMasks[c]) == 0) return true;
+            }
+            return false;
+        }
+    }
+
+    // Lock-free union-find over positions: every union links the root with the larger
+    // position below the other root with a compare-and-set, and finds halve their paths.
+    private static final class UnionFind {
+        final AtomicIntegerArray parent;
+
+        UnionFind(int size) {
+            parent = new AtomicIntegerArray(size);
+            for (int i = 0; i < size; i++) parent.set(i, i);
+        }
+
+        int find(int x) {
+            while (true) {
+                int p = parent.get(x);
+                if (p == x) return x;
+                int grandparent = parent.get(p);
+                if (p != grandparent) parent.compareAndSet(x, p, grandparent);
+                x = grandparent;
+            }
+        }
+
+        void union(int a, int b) {
+            while (true) {
+                int ra = find(a);
+                int rb = find(b);
+                if (ra == rb) return;
+                // Only a root may be relinked; if another thread moved it first, retry.
+                if (ra < rb) {
+                    if (parent.compareAndSet(rb, rb, ra)) return;
+                } else {
+                    if (parent.compareAndSet(ra, ra, rb)) return;
+                }
+            }
+        }
+    }
+}
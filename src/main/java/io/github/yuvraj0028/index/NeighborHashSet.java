@@ -0,0 +1,135 @@
+package io.github.yuvraj0028.index;
+
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Open-addressing hash set of 64-bit hashes that answers small-distance searches by looking
+ * up every neighbor of the query directly: all the values that differ from it in at most
+ * maxDist bits. An exact lookup is a single probe, and a distance-3 search at most
+ * 1 + 64 + 2016 + 41664 probes, however many hashes are stored. Larger distances would
+ * need far more probes, so they fall back to scanning all the stored hashes.
+ */
+public class NeighborHashSet implements HashIndex {
+
+    /** Largest search distance answered by enumerating neighbors. */
+    public static final int MAX_ENUMERATION_DISTANCE = 3;
+
+    // Neighbors within distance 0, 1, 2 and 3 of a hash: sums of C(64, i).
+    private static final int[] NEIGHBORS = {1, 1 + 64, 1 + 64 + 2016, 1 + 64 + 2016 + 41664};
+
+    // Typical time of one neighbor lookup (mostly a cache miss), and of comparing the query
+    // against one hash during a scan.
+    private static final double PROBE_NANOS = 25;
+    private static final double HASH_SCAN_NANOS = 0.8;
+
+    // The stored hashes, with the table that looks them up.
+    private final HashPositions table = new HashPositions();
+
+    /**
+     * Constructs an empty NeighborHashSet.
+     */
+    public NeighborHashSet() {}
+
+    /**
+     * Adds an image hash to the set. Adding a hash that is already stored has no effect.
+     * @param value The 64-bit hash of the image to add.
+     */
+    @Override
+    public void add(long value) {
+        table.add(value);
+    }
+
+    /**
+     * Returns whether an image hash is stored in the set.
+     * @param value The 64-bit hash to look up.
+     * @return true if the hash is stored.
+     */
+    public boolean contains(long value) {
+        return table.contains(value);
+    }
+
+    @Override
+    public boolean remove(long value) {
+        return table.remove(value);
+    }
+
+    /**
+     * Returns the number of distinct hashes stored in the set.
+     * @return The hash count.
+     */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * Searches for image hashes within maxDist of the query value and hands every match
+     * to the visitor. Up to {@link #MAX_ENUMERATION_DISTANCE} the neighbors of the query are
+     * looked up directly (in increasing distance) unless scanning the hashes is cheaper;
+     * larger distances always scan the hashes.
+     */
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        if (maxDist < 0 || table.size == 0) return true;
+        if (!enumerates(maxDist)) {
+            return scan(value, maxDist, visitor);
+        }
+
+        // 1. The query itself, then every value 1, 2 and 3 bit flips away.
+        if (!probe(value, 0, visitor)) return false;
+        for (int i = 0; i < 64 && maxDist >= 1; i++) {
+            if (!probe(value ^ (1L << i), 1, visitor)) return false;
+        }
+        for (int i = 0; i < 64 && maxDist >= 2; i++) {
+            for (int j = i + 1; j < 64; j++) {
+                if (!probe(value ^ (1L << i) ^ (1L << j), 2, visitor)) return false;
+            }
+        }
+        for (int i = 0; i < 64 && maxDist >= 3; i++) {
+            for (int j = i + 1; j < 64; j++) {
+                long flipped = value ^ (1L << i) ^ (1L << j);
+                for (int k = j + 1; k < 64; k++) {
+                    if (!probe(flipped ^ (1L << k), 3, visitor)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Whether a search within maxDist enumerates the neighbors rather than scanning the hashes.
+    private boolean enumerates(int maxDist) {
+        return maxDist <= MAX_ENUMERATION_DISTANCE && NEIGHBORS[maxDist] <= table.capacity();
+    }
+
+    @Override
+    public double estimateSearchCost(long value, int maxDist) {
+        if (maxDist < 0 || table.size == 0) return 0;
+        return enumerates(maxDist) ? estimateProbeCost(maxDist) : table.size * HASH_SCAN_NANOS;
+    }
+
+    /**
+     * Estimates how long looking up every neighbor within maxDist of a query takes,
+     * whatever the number of stored hashes; lets a planner cost a set it has not built.
+     * @param maxDist The maximum allowed Hamming distance for a match (tolerance).
+     * @return The estimated time in nanoseconds, or infinity beyond
+     *         {@link #MAX_ENUMERATION_DISTANCE}, where neighbors are not enumerated.
+     */
+    public static double estimateProbeCost(int maxDist) {
+        if (maxDist < 0) return 0;
+        return maxDist <= MAX_ENUMERATION_DISTANCE ? NEIGHBORS[maxDist] * PROBE_NANOS : Double.POSITIVE_INFINITY;
+    }
+
+    // Reports a neighbor of the query if it is stored.
+    private boolean probe(long neighbor, int dist, HashVisitor visitor) {
+        return !contains(neighbor) || visitor.visit(neighbor, dist);
+    }
+
+    // Compares the query against every stored hash.
+    private boolean scan(long value, int maxDist, HashVisitor visitor) {
+        long[] hashes = table.hashes;
+        for (int i = 0; i < table.size; i++) {
+            int dist = Hamming.distanceLong(hashes[i], value);
+            if (dist <= maxDist && !visitor.visit(hashes[i], dist)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.yuvraj0028.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Index that partitions the hashes across several independent shards (each one any
+ * {@link HashIndex}) so that building and searching use several cores. Every hash lives in
+ * exactly one shard, chosen from the hash itself, so an insert or a removal touches a single
+ * shard while a search fans out to all of them in parallel and merges the results.
+ * <p>
+ * Like the indexes it wraps, a ShardedIndex is not safe for concurrent updates.
+ */
+public class ShardedIndex implements HashIndex {
+
+    // Multiplier of the Fibonacci hashing that spreads similar hashes over the shards.
+    private static final long SPREAD = 0x9E3779B97F4A7C15L;
+
+    private final HashIndex[] shards;
+
+    // Pool that runs the per-shard work of builds and searches.
+    private final ForkJoinPool pool;
+
+    private ShardedIndex(HashIndex[] shards, ForkJoinPool pool) {
+        this.shards = shards;
+        this.pool = pool;
+    }
+
+    /**
+     * Builds a sharded index over the given hashes: they are partitioned into the shards
+     * first, then every shard is built on its own in the pool.
+     * @param values The hashes to index (duplicates are allowed).
+     * @param shardCount The number of shards, usually the number of cores.
+     * @param loader Builds one shard from the hashes assigned to it.
+     * @param pool The pool that builds the shards and later runs their searches.
+     * @return The sharded index.
+     */
+    public static ShardedIndex build(long[] values, int shardCount, Function<long[], HashIndex> loader,
+                                     ForkJoinPool pool) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+
+        // 1. Count the hashes of every shard, then place them (counting sort by shard).
+        int[] start = new int[shardCount + 1];
+        for (long value : values) {
+            start[shardOf(value, shardCount) + 1]++;
+        }
+        for (int s = 0; s < shardCount; s++) {
+            start[s + 1] += start[s];
+        }
+        long[] sorted = new long[values.length];
+        int[] next = Arrays.copyOf(start, shardCount);
+        for (long value : values) {
+            sorted[next[shardOf(value, shardCount)]++] = value;
+        }
+
+        // 2. Build the shards in parallel.
+        List<ForkJoinTask<HashIndex>> tasks = new ArrayList<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            long[] part = Arrays.copyOfRange(sorted, start[s], start[s + 1]);
+            tasks.add(pool.submit(() -> loader.apply(part)));
+        }
+        HashIndex[] shards = new HashIndex[shardCount];
+        for (int s = 0; s < shardCount; s++) {
+            shards[s] = tasks.get(s).join();
+        }
+        return new ShardedIndex(shards, pool);
+    }
+
+    // Maps a hash to a shard (multiply-shift range reduction of the spread hash).
+    private static int shardOf(long value, int shardCount) {
+        return (int) (((value * SPREAD) >>> 32) * shardCount >>> 32);
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return The shard count.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public void add(long value) {
+        shards[shardOf(value, shards.length)].add(value);
+    }
+
+    @Override
+    public boolean remove(long value) {
+        return shards[shardOf(value, shards.length)].remove(value);
+    }
+
+    /**
+     * Returns whether any shard needs compaction.
+     */
+    @Override
+    public boolean needsCompaction() {
+        for (HashIndex shard : shards) {
+            if (shard.needsCompaction()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compacts the shards that need it, in parallel.
+     */
+    @Override
+    public void compact() {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (HashIndex shard : shards) {
+            if (shard.needsCompaction()) tasks.add(ForkJoinTask.adapt(shard::compact));
+        }
+        pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+    }
+
+    /**
+     * Searches every shard in turn and hands every match to the visitor. The visitor is
+     * only ever called from the calling thread; {@link #search(long, int)} searches the
+     * shards in parallel instead.
+     */
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        for (HashIndex shard : shards) {
+            if (!shard.search(value, maxDist, visitor)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Searches all shards in parallel for image hashes within maxDist of the query value
+     * and concatenates their results.
+     */
+    @Override
+    public List<Long> search(long value, int maxDist) {
+        List<List<Long>> parts = fanOut(shard -> shard.search(value, maxDist));
+        List<Long> res = new ArrayList<>();
+        for (List<Long> part : parts) {
+            res.addAll(part);
+        }
+        return res;
+    }
+
+    /**
+     * Estimates the time of a parallel {@link #search(long, int)}: the work of all shards,
+     * spread over as many of them as the pool runs at once.
+     */
+    @Override
+    public double estimateSearchCost(long value, int maxDist) {
+        double total = 0;
+        for (HashIndex shard : shards) {
+            total += shard.estimateSearchCost(value, maxDist);
+        }
+        return total / Math.min(shards.length, pool.getParallelism());
+    }
+
+    /**
+     * Finds the k closest hashes of every shard in parallel and keeps the k closest overall.
+     */
+    @Override
+    public List<Long> nearest(long value, int k) {
+        List<Long> res = new ArrayList<>();
+        if (k <= 0) return res;
+        for (List<Long> part : fanOut(shard -> shard.nearest(value, k))) {
+            res.addAll(part);
+        }
+        res.sort(Comparator.comparingInt(h -> Hamming.distanceLong(h, value)));
+        return res.size() > k ? new ArrayList<>(res.subList(0, k)) : res;
+    }
+
+    // Runs a query on every shard: all but the first in the pool, the first in this thread.
+    private List<List<Long>> fanOut(Function<HashIndex, List<Long>> query) {
+        List<ForkJoinTask<List<Long>>> tasks = new ArrayList<>(shards.length - 1);
+        for (int s = 1; s < shards.length; s++) {
+            HashIndex shard = shards[s];
+            tasks.add(pool.submit(() -> query.apply(shard)));
+        }
+        List<List<Long>> parts = new ArrayList<>(shards.length);
+        parts.add(query.apply(shards[0]));
+        for (ForkJoinTask<List<Long>> task : tasks) {
+            parts.add(task.join());
+        }
+        return parts;
+    }
+}
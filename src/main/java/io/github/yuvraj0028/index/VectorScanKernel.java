@@ -0,0 +1,72 @@
+package io.github.yuvraj0028.index;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Linear scan on the incubating Vector API: XORs the query with a whole vector of packed
+ * hashes at once, counts the differing bits of every lane and keeps the lanes within the
+ * search distance. LinearScanIndex loads it by name, and only uses it when the
+ * jdk.incubator.vector module is present (--add-modules jdk.incubator.vector) and the JDK
+ * counts bits per lane (Java 19+); otherwise it keeps its scalar scan.
+ */
+final class VectorScanKernel implements LinearScanIndex.ScanKernel {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    // Lane-wise popcount, looked up by name since the Java 17 API lacks it. Counting the bits
+    // with shifts and masks instead is slower than the scalar loop on POPCNT, so without it
+    // the kernel is not used at all.
+    private static final VectorOperators.Unary BIT_COUNT = bitCountOperator();
+
+    /**
+     * Constructs the kernel.
+     * @throws UnsupportedOperationException If the JDK has no lane-wise bit count, or no
+     *         vectors of more than one hash.
+     */
+    VectorScanKernel() {
+        if (BIT_COUNT == null || SPECIES.length() < 2) {
+            throw new UnsupportedOperationException("No vectorized bit count on this JDK");
+        }
+    }
+
+    private static VectorOperators.Unary bitCountOperator() {
+        try {
+            return (VectorOperators.Unary) VectorOperators.class.getField("BIT_COUNT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean search(long[] data, int n, long value, int maxDist, HashVisitor visitor) {
+        LongVector query = LongVector.broadcast(SPECIES, value);
+        int i = 0;
+
+        // 1. One vector of hashes per step; a block without any match is rejected with a
+        //    single mask test, the matching lanes are visited in order.
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            LongVector dists = LongVector.fromArray(SPECIES, data, i)
+                    .lanewise(VectorOperators.XOR, query)
+                    .lanewise(BIT_COUNT);
+            VectorMask<Long> matches = dists.compare(VectorOperators.LE, maxDist);
+            if (!matches.anyTrue()) continue;
+
+            for (long lanes = matches.toLong(); lanes != 0; lanes &= lanes - 1) {
+                int j = i + Long.numberOfTrailingZeros(lanes);
+                if (!visitor.visit(data[j], Hamming.distanceLong(data[j], value))) return false;
+            }
+        }
+
+        // 2. The remaining hashes, fewer than a vector, one by one.
+        for (; i < n; i++) {
+            int dist = Hamming.distanceLong(data[i], value);
+            if (dist <= maxDist && !visitor.visit(data[i], dist)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,229 @@
+package io.github.yuvraj0028.mih;
+
+import java.util.Arrays;
+
+import io.github.yuvraj0028.index.HashIndex;
+import io.github.yuvraj0028.index.HashVisitor;
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Implements multi-index hashing (MIH) for exact Hamming-distance search over 64-bit hashes.
+ * Every hash is split into m disjoint substrings, and each substring indexes the hash in its
+ * own table. By the pigeonhole principle, a hash within distance r of the query matches it in
+ * at least one substring within distance about r / m, so a search only probes the few
+ * substring values close to the query's and verifies the candidates found there. Unlike a
+ * BK-Tree, this does not degrade towards a linear scan as the search distance grows.
+ */
+public class MultiIndexHashing implements HashIndex {
+
+    // Substrings are at most 16 bits wide, so every table is a directly addressed array of
+    // buckets (one per possible substring value) rather than a hash table.
+    private static final int MIN_SUBSTRINGS = 4;
+    private static final int MAX_SUBSTRINGS = 8;
+
+    // Typical time to look up one bucket, and to verify one candidate found in it.
+    private static final double PROBE_NANOS = 4;
+    private static final double CANDIDATE_NANOS = 6;
+
+    // Position and width (in bits) of every substring within the 64-bit hash.
+    private final int[] offsets;
+    private final int[] widths;
+
+    // tables[i][key] holds the hashes whose substring 'i' equals 'key' (the first
+    // sizes[i][key] entries); buckets are created on first use.
+    private final long[][][] tables;
+    private final int[][] sizes;
+
+    // Number of distinct hashes stored.
+    private int size = 0;
+
+    /**
+     * Constructs an empty index that splits hashes into 4 substrings of 16 bits.
+     */
+    public MultiIndexHashing() {
+        this(MIN_SUBSTRINGS);
+    }
+
+    /**
+     * Constructs an empty index that splits hashes into the given number of substrings.
+     * More substrings mean smaller tables and fewer probes per table, but more candidates.
+     * @param substrings The number of substrings (m), between 4 and 8.
+     */
+    public MultiIndexHashing(int substrings) {
+        if (substrings < MIN_SUBSTRINGS || substrings > MAX_SUBSTRINGS) {
+            throw new IllegalArgumentException("Substring count must be between "
+                    + MIN_SUBSTRINGS + " and " + MAX_SUBSTRINGS + ": " + substrings);
+        }
+        offsets = new int[substrings];
+        widths = new int[substrings];
+        tables = new long[substrings][][];
+        sizes = new int[substrings][];
+
+        // The first (64 % m) substrings get one extra bit so that the widths add up to 64.
+        int offset = 0;
+        for (int i = 0; i < substrings; i++) {
+            widths[i] = 64 / substrings + (i < 64 % substrings ? 1 : 0);
+            offsets[i] = offset;
+            offset += widths[i];
+            tables[i] = new long[1 << widths[i]][];
+            sizes[i] = new int[1 << widths[i]];
+        }
+    }
+
+    // Extracts substring 'i' of a hash.
+    private int key(long value, int i) {
+        return (int) ((value >>> offsets[i]) & ((1L << widths[i]) - 1));
+    }
+
+    /**
+     * Adds an image hash to the index. Adding a hash that is already stored has no effect.
+     * @param value The 64-bit hash of the image to add.
+     */
+    @Override
+    public void add(long value) {
+        if (contains(value)) return;
+        for (int i = 0; i < tables.length; i++) {
+            int key = key(value, i);
+            long[] bucket = tables[i][key];
+            int n = sizes[i][key];
+            if (bucket == null) {
+                bucket = tables[i][key] = new long[2];
+            } else if (n == bucket.length) {
+                bucket = tables[i][key] = Arrays.copyOf(bucket, n * 2);
+            }
+            bucket[n] = value;
+            sizes[i][key] = n + 1;
+        }
+        size++;
+    }
+
+    /**
+     * Returns whether an image hash is stored in the index.
+     * @param value The 64-bit hash to look up.
+     * @return true if the hash is stored.
+     */
+    public boolean contains(long value) {
+        int key = key(value, 0);
+        long[] bucket = tables[0][key];
+        for (int j = sizes[0][key] - 1; j >= 0; j--) {
+            if (bucket[j] == value) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(long value) {
+        if (!contains(value)) return false;
+        for (int i = 0; i < tables.length; i++) {
+            int key = key(value, i);
+            long[] bucket = tables[i][key];
+            int n = sizes[i][key];
+            for (int j = 0; j < n; j++) {
+                if (bucket[j] == value) {
+                    // Order inside a bucket does not matter: move the last entry into the gap.
+                    bucket[j] = bucket[n - 1];
+                    sizes[i][key] = n - 1;
+                    break;
+                }
+            }
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the number of distinct hashes stored in the index.
+     * @return The hash count.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean search(long value, int maxDist, HashVisitor visitor) {
+        if (maxDist < 0 || size == 0) return true;
+
+        // 1. Per-substring radii: with r = a * m + b, a match is within 'a' of the query in
+        //    one of the first b + 1 substrings, or within 'a - 1' in one of the others
+        //    (otherwise its distance would be at least (b + 1)(a + 1) + (m - b - 1) a = r + 1).
+        int m = tables.length;
+        int a = maxDist / m;
+        int b = maxDist % m;
+
+        for (int i = 0; i < m; i++) {
+            int radius = Math.min(widths[i], i <= b ? a : a - 1);
+            int query = key(value, i);
+
+            // 2. Probe every substring value within 'radius' bits of the query's, going
+            //    through the flip masks of each popcount in turn (Gosper's hack).
+            for (int flips = 0; flips <= radius; flips++) {
+                int limit = 1 << widths[i];
+                for (int flip = (1 << flips) - 1; flip < limit; flip = nextCombination(flip)) {
+                    if (!probe(value, maxDist, i, query ^ flip, visitor)) return false;
+                    if (flip == 0) break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the time a search would take from the number of buckets it probes and of
+     * candidates stored in them, without verifying the candidates.
+     */
+    @Override
+    public double estimateSearchCost(long value, int maxDist) {
+        if (maxDist < 0 || size == 0) return 0;
+        int m = tables.length;
+        int a = maxDist / m;
+        int b = maxDist % m;
+
+        long probes = 0;
+        long candidates = 0;
+        for (int i = 0; i < m; i++) {
+            int radius = Math.min(widths[i], i <= b ? a : a - 1);
+            int query = key(value, i);
+            for (int flips = 0; flips <= radius; flips++) {
+                int limit = 1 << widths[i];
+                for (int flip = (1 << flips) - 1; flip < limit; flip = nextCombination(flip)) {
+                    probes++;
+                    candidates += sizes[i][query ^ flip];
+                    if (flip == 0) break;
+                }
+            }
+        }
+        return probes * PROBE_NANOS + candidates * CANDIDATE_NANOS;
+    }
+
+    // Verifies the candidates of one bucket of table 'i' and reports the matches.
+    private boolean probe(long value, int maxDist, int i, int key, HashVisitor visitor) {
+        long[] bucket = tables[i][key];
+        for (int j = sizes[i][key] - 1; j >= 0; j--) {
+            long candidate = bucket[j];
+            int dist = Hamming.distanceLong(candidate, value);
+            if (dist > maxDist || foundEarlier(candidate, value, maxDist, i)) continue;
+            if (!visitor.visit(candidate, dist)) return false;
+        }
+        return true;
+    }
+
+    // A candidate shows up in every table where it is close enough to the query; it is only
+    // reported by the first such table, so no result set is needed to drop duplicates.
+    private boolean foundEarlier(long candidate, long value, int maxDist, int i) {
+        int m = tables.length;
+        int a = maxDist / m;
+        int b = maxDist % m;
+        for (int j = 0; j < i; j++) {
+            int diff = Integer.bitCount(key(candidate, j) ^ key(value, j));
+            if (diff <= (j <= b ? a : a - 1)) return true;
+        }
+        return false;
+    }
+
+    // Returns the next larger integer with the same number of set bits (Gosper's hack).
+    private static int nextCombination(int x) {
+        int lowest = x & -x;
+        int ripple = x + lowest;
+        return ripple | (((x ^ ripple) >>> 2) / lowest);
+    }
+}
@@ -0,0 +1,22 @@
+package io.github.yuvraj0028.models;
+
+/**
+ * Defines the ways pHash can compute the low-frequency block of the Discrete Cosine
+ * Transform (DCT) of its 32x32 thumbnail. Both kernels compute the same coefficients up to
+ * rounding, and pHash sets the coefficients that are zero in exact arithmetic (within a
+ * relative 1e-9 of the DC coefficient) to exactly zero, so flat and perfectly uniform
+ * thumbnails hash the same with either kernel. On other images the hashes agree except when
+ * a coefficient lies within rounding error of the median, which did not happen on any of
+ * the photos and synthetic images they were validated on.
+ */
+public enum DctKernel {
+
+    /** Row and column passes against a precomputed cosine basis, in double precision (the reference). */
+    BASIS,
+
+    /**
+     * Row and column passes against an integer basis (16 fractional bits), in exact integer
+     * arithmetic: the fastest kernel, and the same result on every platform.
+     */
+    FIXED_POINT
+}
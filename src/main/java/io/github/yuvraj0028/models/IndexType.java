@@ -0,0 +1,16 @@
+package io.github.yuvraj0028.models;
+
+/**
+ * Defines the supported index structures used to search stored hashes by Hamming distance.
+ */
+public enum IndexType {
+
+    /** Burkhard-Keller Tree: good general choice, best at small search distances. */
+    BK_TREE,
+
+    /** Multi-index hashing: splits hashes into substrings; best at medium distances (about 5-15). */
+    MULTI_INDEX_HASHING,
+
+    /** Linear scan over a packed array: best for small collections and large distances. */
+    LINEAR_SCAN
+}
@@ -0,0 +1,17 @@
+package io.github.yuvraj0028.models;
+
+/**
+ * Defines the ways the service can answer a similarity search; its query planner picks
+ * the cheapest one for the HashType and search distance.
+ */
+public enum SearchStrategy {
+
+    /** Search the index configured for the HashType (see IndexType). */
+    INDEX,
+
+    /** Look up every neighbor of the query in a hash set: best for exact and near-exact searches. */
+    NEIGHBOR_PROBE,
+
+    /** Compare the query against every stored hash: best for small collections and large distances. */
+    LINEAR_SCAN
+}
@@ -1,21 +1,42 @@
 package io.github.yuvraj0028.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.imageio.ImageIO;
 
 import io.github.yuvraj0028.bktree.BKTree;
+import io.github.yuvraj0028.bktree.MappedBKTree;
+import io.github.yuvraj0028.index.HashIndex;
+import io.github.yuvraj0028.index.HashPairVisitor;
+import io.github.yuvraj0028.index.LinearScanIndex;
+import io.github.yuvraj0028.index.NearDuplicateJoin;
+import io.github.yuvraj0028.index.NeighborHashSet;
+import io.github.yuvraj0028.index.ShardedIndex;
+import io.github.yuvraj0028.mih.MultiIndexHashing;
 import io.github.yuvraj0028.models.HashType;
+import io.github.yuvraj0028.models.IndexType;
+import io.github.yuvraj0028.models.SearchStrategy;
 import io.github.yuvraj0028.utils.HashUtils;
 
 import java.awt.image.BufferedImage;
 
 /**
  * Service class that handles the core logic for computing, storing, and searching
- * for image similarity using various perceptual hashing algorithms and a BK-Tree.
- * * It manages two main caches: one for the hashes/filenames and one for the BK-Trees.
+ * for image similarity using various perceptual hashing algorithms and a search index
+ * (a BK-Tree unless another IndexType is chosen for the HashType).
+ * * It manages two main caches: one for the hashes/filenames and one for the search indexes.
  */
 public class ImageSimilarityService {
 
@@ -23,9 +44,33 @@ public class ImageSimilarityService {
     // This allows retrieval of the image's name given its hash. EnumMap is used for efficiency.
     private final Map<HashType, Map<Long, String>> store = new EnumMap<>(HashType.class);
     
-    // Cache map: Maps a HashType to its corresponding BKTree.
-    // This stores the pre-built, searchable tree for each hashing algorithm.
-    private final Map<HashType, BKTree> treeCache = new EnumMap<>(HashType.class);
+    // Cache map: Maps a HashType to its corresponding search index.
+    // This stores the pre-built, searchable index for each hashing algorithm.
+    private final Map<HashType, HashIndex> indexCache = new EnumMap<>(HashType.class);
+
+    // Index structure used for each HashType (BK_TREE unless configured otherwise).
+    private final Map<HashType, IndexType> indexTypes = new EnumMap<>(HashType.class);
+
+    // Number of shards the index of each HashType is split into (1, i.e. unsharded, by default).
+    private final Map<HashType, Integer> shardCounts = new EnumMap<>(HashType.class);
+
+    // Cache map: Maps a HashType to a hash set of its stored hashes, which answers exact and
+    // tiny-distance searches by looking up the query's neighbors instead of using the index.
+    private final Map<HashType, NeighborHashSet> neighborCache = new EnumMap<>(HashType.class);
+
+    // Cache map: Maps a HashType to a packed array of its stored hashes, for linear scans.
+    private final Map<HashType, LinearScanIndex> scanCache = new EnumMap<>(HashType.class);
+
+    // Chooses between the index, the neighbor set and a linear scan for every search.
+    private final QueryPlanner planner = new QueryPlanner();
+
+    // Whether the planner may build the scan arrays above. A neighbor set is built the first
+    // time the planner picks it, but a scan array only pays off on small collections or very
+    // large distances, so it is off unless enabled.
+    private boolean linearScans = false;
+
+    // Optional cache of findSimilar results (null while disabled).
+    private QueryResultCache queryCache = null;
 
     /**
      * Initializes the service by creating an empty hash-to-filename map
@@ -34,12 +79,106 @@ public class ImageSimilarityService {
     public ImageSimilarityService() {
         for (HashType hashType : HashType.values()) {
             store.put(hashType, new HashMap<>());
+            indexTypes.put(hashType, IndexType.BK_TREE);
+            shardCounts.put(hashType, 1);
+        }
+    }
+
+    /**
+     * Chooses the index structure used to search the hashes of the given HashType.
+     * The current index of that type is dropped and rebuilt on next use.
+     * * @param hashType The HashType whose index to configure.
+     * @param indexType The index structure to use.
+     */
+    public void setIndexType(HashType hashType, IndexType indexType) {
+        if (indexTypes.put(hashType, indexType) != indexType) {
+            indexCache.remove(hashType);
+        }
+    }
+
+    /**
+     * Returns the index structure used to search the hashes of the given HashType.
+     * * @param hashType The HashType to look up.
+     * @return The configured IndexType.
+     */
+    public IndexType getIndexType(HashType hashType) {
+        return indexTypes.get(hashType);
+    }
+
+    /**
+     * Splits the index of the given HashType into several shards that are built and
+     * searched in parallel; a count matching the number of cores scales both with them.
+     * The current index of that type is dropped and rebuilt on next use.
+     * * @param hashType The HashType whose index to configure.
+     * @param shards The number of shards (1 keeps a single, unsharded index).
+     */
+    public void setShardCount(HashType hashType, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shards);
+        }
+        if (shardCounts.put(hashType, shards) != shards) {
+            indexCache.remove(hashType);
         }
     }
 
+    /**
+     * Returns the number of shards the index of the given HashType is split into.
+     * * @param hashType The HashType to look up.
+     * @return The configured shard count.
+     */
+    public int getShardCount(HashType hashType) {
+        return shardCounts.get(hashType);
+    }
+
+    /**
+     * Lets the query planner also answer searches by scanning a packed array of all the
+     * hashes of a HashType, which beats the index on small collections and at large
+     * distances. The array is built on first use and holds another copy of the stored
+     * hashes (about 17 bytes per hash), which is why linear scans are disabled by default.
+     */
+    public void enableLinearScans() {
+        linearScans = true;
+        planner.clear();
+    }
+
+    /**
+     * Stops the query planner from picking linear scans, and drops the arrays built so far.
+     */
+    public void disableLinearScans() {
+        linearScans = false;
+        scanCache.clear();
+        planner.clear();
+    }
+
+    /**
+     * Enables caching of findSimilar results, keeping up to capacity searches and evicting
+     * the least recently used one beyond that. Storing or removing an image only drops the
+     * cached searches whose results it changes. Any previous cache is discarded.
+     * * @param capacity The maximum number of cached searches.
+     */
+    public void enableQueryCache(int capacity) {
+        queryCache = new QueryResultCache(capacity);
+    }
+
+    /**
+     * Disables (and discards) the cache of findSimilar results.
+     */
+    public void disableQueryCache() {
+        queryCache = null;
+    }
+
+    /**
+     * Returns the cache of findSimilar results, whose counters (hit ratio, evictions...)
+     * help tune its capacity.
+     * * @return The query result cache, or null if it is disabled.
+     */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+
     /**
      * Computes the hash for an image, stores the hash-to-filename mapping,
-     * and adds the hash to the relevant BK-Tree.
+     * and adds the hash to the relevant search index.
      * * @param imageFile The image file to process.
      * @param hashType The type of perceptual hash to compute (PHASH, DHASH, etc.).
      * @return The computed 64-bit hash value.
@@ -52,26 +191,68 @@ public class ImageSimilarityService {
         // 1. Store the hash-to-filename mapping.
         store.get(hashType).put(hashValue, imageFile.getName());
 
-        // 2. Manage the BK-Tree.
-        BKTree tree = treeCache.get(hashType);
+        // 2. Manage the search index.
+        HashIndex index = indexCache.get(hashType);
 
-        if (tree != null) {
-            // Tree exists, just add the new hash.
-            tree.add(hashValue);
+        if (index != null) {
+            // Index exists, just add the new hash.
+            index.add(hashValue);
         } else {
-            // Tree does not exist (cache miss or first call). Build the tree from all stored hashes.
-            tree = new BKTree();
-            // Rebuild the tree by adding all existing hashes for this HashType.
-            for (Long hash : store.get(hashType).keySet()) {
-                tree.add(hash);
-            }
-            // Cache the newly built tree.
-            treeCache.put(hashType, tree);
+            // Index does not exist (cache miss or first call). Build it from all stored hashes.
+            getOrBuildIndex(hashType);
         }
 
+        // 3. Keep the neighbor set and the linear scan array in step, if they have been built.
+        addToSideCaches(hashValue, hashType);
+
         return hashValue;
     }
 
+    /**
+     * Computes the hash for an image and stores it only if no stored image lies within
+     * maxDistance of it. The index is searched and, when nothing matches, updated in a
+     * single walk, which saves the second descent of a findSimilar followed by a store.
+     * Like the rest of this service, it is not thread-safe: callers that store images from
+     * several threads must serialize this method with the other writes themselves.
+     * * @param imageFile The image file to process.
+     * @param hashType The type of perceptual hash to compute (PHASH, DHASH, etc.).
+     * @param maxDistance The maximum Hamming distance at which a stored image counts as a duplicate.
+     * @return The filename of a stored near-duplicate (the image is then not stored), or
+     *         null if the image was stored.
+     * @throws IOException if the image file cannot be read.
+     */
+    public String addIfAbsentWithin(File imageFile, HashType hashType, int maxDistance) throws IOException {
+        BufferedImage img = ImageIO.read(imageFile);
+        long hashValue = computeHash(img, hashType);
+
+        // 1. Search and insert into the index at once.
+        OptionalLong match = getOrBuildIndex(hashType).addIfAbsentWithin(hashValue, maxDistance);
+        if (match.isPresent()) {
+            return store.get(hashType).get(match.getAsLong());
+        }
+
+        // 2. Only a hash the index accepted is stored.
+        store.get(hashType).put(hashValue, imageFile.getName());
+        addToSideCaches(hashValue, hashType);
+        return null;
+    }
+
+    // Adds a newly stored hash to the neighbor set and the linear scan array, if they have been
+    // built, and drops the cached results it changes.
+    private void addToSideCaches(long hashValue, HashType hashType) {
+        if (queryCache != null) {
+            queryCache.invalidate(hashValue, hashType);
+        }
+        NeighborHashSet neighbors = neighborCache.get(hashType);
+        if (neighbors != null) {
+            neighbors.add(hashValue);
+        }
+        LinearScanIndex scan = scanCache.get(hashType);
+        if (scan != null) {
+            scan.add(hashValue);
+        }
+    }
+
     /**
      * Computes the perceptual hash of an image using the specified hashing algorithm.
      * * @param img The BufferedImage object.
@@ -88,34 +269,157 @@ public class ImageSimilarityService {
     }
 
     /**
-     * Retrieves the BKTree for the given HashType from the cache or builds it if necessary.
-     * This lazy initialization ensures the tree is only built when a search is requested.
-     * * @param type The type of hash/tree to retrieve.
-     * @return The BKTree instance.
+     * Retrieves the search index for the given HashType from the cache or builds it if necessary.
+     * This lazy initialization ensures the index is only built when a search is requested.
+     * * @param type The type of hash/index to retrieve.
+     * @return The HashIndex instance, of the IndexType and shard count configured for the HashType.
      */
-    private BKTree getOrBuildTree(HashType type) {
-        BKTree tree = treeCache.get(type);
-        if (tree != null) return tree;
+    private HashIndex getOrBuildIndex(HashType type) {
+        HashIndex index = indexCache.get(type);
+        if (index != null) return index;
 
-        // Tree is not cached, build it from the stored hashes.
-        tree = new BKTree();
+        // Index is not cached, build it from the stored hashes.
+        long[] values = storedHashes(type);
+
+        IndexType indexType = indexTypes.get(type);
+        int shards = shardCounts.get(type);
+        if (shards == 1) {
+            index = buildIndex(indexType, values);
+        } else {
+            index = ShardedIndex.build(values, shards, part -> buildIndex(indexType, part),
+                    ForkJoinPool.commonPool());
+        }
+        indexCache.put(type, index);
+        return index;
+    }
+
+    /**
+     * Retrieves the neighbor set for the given HashType from the cache or builds it
+     * from the stored hashes if necessary.
+     */
+    private NeighborHashSet getOrBuildNeighborSet(HashType type) {
+        NeighborHashSet neighbors = neighborCache.get(type);
+        if (neighbors != null) return neighbors;
+
+        neighbors = new NeighborHashSet();
         for (Long hash : store.get(type).keySet()) {
-            tree.add(hash);
+            neighbors.add(hash);
+        }
+        neighborCache.put(type, neighbors);
+        return neighbors;
+    }
+
+    /**
+     * Retrieves the linear scan array for the given HashType from the cache or builds it
+     * from the stored hashes if necessary.
+     */
+    private LinearScanIndex getOrBuildScanIndex(HashType type) {
+        LinearScanIndex scan = scanCache.get(type);
+        if (scan != null) return scan;
+
+        scan = new LinearScanIndex();
+        for (Long hash : store.get(type).keySet()) {
+            scan.add(hash);
+        }
+        scanCache.put(type, scan);
+        return scan;
+    }
+
+    /**
+     * Builds an index of the given IndexType over a set of hashes.
+     */
+    private static HashIndex buildIndex(IndexType indexType, long[] values) {
+        HashIndex index;
+        switch (indexType) {
+            case BK_TREE:
+                // Bulk loading picks balanced pivots and builds large subtrees in parallel,
+                // unlike adding the hashes one by one.
+                return BKTree.bulkLoad(values, ForkJoinPool.commonPool());
+            case MULTI_INDEX_HASHING:
+                index = new MultiIndexHashing();
+                break;
+            case LINEAR_SCAN:
+                index = new LinearScanIndex();
+                break;
+            default: throw new RuntimeException("IndexType not supported");
         }
-        treeCache.put(type, tree);
-        return tree;
+        for (long value : values) {
+            index.add(value);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the strategy the query planner picks for a search of the given HashType within
+     * maxDistance: the one with the lowest estimated cost for the current collection. Linear
+     * scans are only considered once enabled (see {@link #enableLinearScans()}).
+     * Useful to diagnose how {@link #findSimilar(long, HashType, int)} answers a search.
+     * * @param type The HashType of the search.
+     * @param maxDistance The maximum Hamming distance allowed for a match.
+     * @return The SearchStrategy that findSimilar uses.
+     */
+    public SearchStrategy planSearch(HashType type, int maxDistance) {
+        return planner.plan(type, maxDistance, getOrBuildIndex(type), store.get(type).keySet(), linearScans);
     }
 
     /**
-     * Searches the BK-Tree for stored hashes that are perceptually similar to the given hash value.
+     * Searches the stored hashes that are perceptually similar to the given hash value.
+     * The query planner picks the cheapest way to do so for the distance: searching the
+     * index, or looking up every neighbor of the query in a hash set (exact and near-exact
+     * searches), which is built the first time it is picked. With linear scans enabled, it
+     * may also scan all the hashes (small collections, large distances).
      * * @param hashValue The query hash.
      * @param type The HashType of the query.
      * @param maxDistance The maximum Hamming distance allowed for a match.
      * @return A list of matching hash values (Long).
      */
     public List<Long> findSimilar(long hashValue, HashType type, int maxDistance) {
-        BKTree tree = getOrBuildTree(type);
-        return tree.search(hashValue, maxDistance);
+        if (queryCache == null) {
+            return plannedIndex(type, maxDistance).search(hashValue, maxDistance);
+        }
+
+        List<Long> results = queryCache.get(hashValue, type, maxDistance);
+        if (results == null) {
+            results = plannedIndex(type, maxDistance).search(hashValue, maxDistance);
+            queryCache.put(hashValue, type, maxDistance, results);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the structure the query planner picks for a search within maxDistance.
+     */
+    private HashIndex plannedIndex(HashType type, int maxDistance) {
+        switch (planSearch(type, maxDistance)) {
+            case NEIGHBOR_PROBE: return getOrBuildNeighborSet(type);
+            case LINEAR_SCAN: return getOrBuildScanIndex(type);
+            default: return getOrBuildIndex(type);
+        }
+    }
+
+    /**
+     * Counts the stored hashes within maxDistance of the given hash value, without building
+     * a list of them.
+     * * @param hashValue The query hash.
+     * @param type The HashType of the query.
+     * @param maxDistance The maximum Hamming distance allowed for a match.
+     * @return The number of stored hashes within maxDistance.
+     */
+    public int count(long hashValue, HashType type, int maxDistance) {
+        return plannedIndex(type, maxDistance).count(hashValue, maxDistance);
+    }
+
+    /**
+     * Counts the stored hashes within maxDistance of the given hash value, stopping as soon
+     * as limit of them are found. With a limit of 1 this checks for any near-duplicate.
+     * * @param hashValue The query hash.
+     * @param type The HashType of the query.
+     * @param maxDistance The maximum Hamming distance allowed for a match.
+     * @param limit The count at which the search stops.
+     * @return The number of stored hashes within maxDistance, at most limit.
+     */
+    public int countUpTo(long hashValue, HashType type, int maxDistance, int limit) {
+        return plannedIndex(type, maxDistance).countUpTo(hashValue, maxDistance, limit);
     }
 
     /**
@@ -131,10 +435,135 @@ public class ImageSimilarityService {
         BufferedImage img = ImageIO.read(imageFile);
         long hashValue = computeHash(img, type);
 
-        // 1. Search the BK-Tree for matching hashes.
+        // 1. Search the index for matching hashes.
         List<Long> matches = findSimilar(hashValue, type, maxDistance);
 
         // 2. Convert the list of matching hashes back to a list of filenames.
+        return toFileNames(matches, type);
+    }
+
+    /**
+     * High-level method to compute the hash of an image file and count the stored images
+     * within maxDistance of it.
+     * * @param imageFile The query image file.
+     * @param type The HashType to use.
+     * @param maxDistance The maximum Hamming distance for similarity.
+     * @return The number of stored images within maxDistance.
+     * @throws IOException if the image file cannot be read.
+     */
+    public int count(File imageFile, HashType type, int maxDistance) throws IOException {
+        BufferedImage img = ImageIO.read(imageFile);
+        return count(computeHash(img, type), type, maxDistance);
+    }
+
+    /**
+     * High-level method to compute the hash of an image file and count the stored images
+     * within maxDistance of it, stopping as soon as limit of them are found.
+     * * @param imageFile The query image file.
+     * @param type The HashType to use.
+     * @param maxDistance The maximum Hamming distance for similarity.
+     * @param limit The count at which the search stops.
+     * @return The number of stored images within maxDistance, at most limit.
+     * @throws IOException if the image file cannot be read.
+     */
+    public int countUpTo(File imageFile, HashType type, int maxDistance, int limit) throws IOException {
+        BufferedImage img = ImageIO.read(imageFile);
+        return countUpTo(computeHash(img, type), type, maxDistance, limit);
+    }
+
+    /**
+     * Finds the k stored hashes closest to the given hash value, without requiring a
+     * maximum distance to be chosen in advance.
+     * * @param hashValue The query hash.
+     * @param type The HashType of the query.
+     * @param k The maximum number of hashes to return.
+     * @return Up to k matching hash values (Long), ordered from the closest to the farthest.
+     */
+    public List<Long> findNearest(long hashValue, HashType type, int k) {
+        HashIndex index = getOrBuildIndex(type);
+        return index.nearest(hashValue, k);
+    }
+
+    /**
+     * High-level method to compute the hash of an image file and find the k most
+     * similar images in the store, returning their filenames.
+     * * @param imageFile The query image file.
+     * @param type The HashType to use.
+     * @param k The maximum number of images to return.
+     * @return Filenames of up to k stored images, ordered from the most to the least similar.
+     * @throws IOException if the image file cannot be read.
+     */
+    public List<String> findNearest(File imageFile, HashType type, int k) throws IOException {
+        BufferedImage img = ImageIO.read(imageFile);
+        long hashValue = computeHash(img, type);
+
+        return toFileNames(findNearest(hashValue, type, k), type);
+    }
+
+    /**
+     * Reports every pair of stored hashes within maxDist of each other, in a single parallel
+     * pass over the collection (much less work than one findSimilar call per image).
+     * The visitor is called from several threads at once, so it must be thread-safe;
+     * {@link #getFileName(long, HashType)} maps the hashes back to their images.
+     * * @param type The HashType whose stored hashes to join.
+     * @param maxDist The maximum Hamming distance of a reported pair.
+     * @param visitor Receives every pair of hashes once, with their distance.
+     */
+    public void findAllNearDuplicatePairs(HashType type, int maxDist, HashPairVisitor visitor) {
+        NearDuplicateJoin.forEachPair(storedHashes(type), maxDist, visitor, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Groups the stored images into clusters of near-duplicates: two images are in the same
+     * cluster if a chain of images, each within maxDist of the next, links them.
+     * * @param type The HashType whose stored images to group.
+     * @param maxDist The maximum Hamming distance between two linked images.
+     * @return The filenames of every cluster with at least two images.
+     */
+    public List<List<String>> groupNearDuplicates(HashType type, int maxDist) {
+        long[] hashes = storedHashes(type);
+        int[] clusters = NearDuplicateJoin.clusters(hashes, maxDist, ForkJoinPool.commonPool());
+
+        // Every cluster is represented by one of its hashes; collect the members under it.
+        Map<Integer, List<String>> groups = new LinkedHashMap<>();
+        Map<Long, String> map = store.get(type);
+        for (int i = 0; i < hashes.length; i++) {
+            groups.computeIfAbsent(clusters[i], c -> new ArrayList<>()).add(map.get(hashes[i]));
+        }
+
+        List<List<String>> results = new ArrayList<>();
+        for (List<String> group : groups.values()) {
+            if (group.size() > 1) results.add(group);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the filename a hash was stored under.
+     * * @param hashValue The stored hash.
+     * @param type The HashType the hash was stored under.
+     * @return The filename, or null if the hash is not stored.
+     */
+    public String getFileName(long hashValue, HashType type) {
+        return store.get(type).get(hashValue);
+    }
+
+    // Copies the stored hashes of a HashType into an array.
+    private long[] storedHashes(HashType type) {
+        Set<Long> hashes = store.get(type).keySet();
+        long[] values = new long[hashes.size()];
+        int i = 0;
+        for (Long hash : hashes) {
+            values[i++] = hash;
+        }
+        return values;
+    }
+
+    /**
+     * Converts a list of matching hashes back to the filenames they were stored under,
+     * keeping the order of the matches.
+     */
+    private List<String> toFileNames(List<Long> matches, HashType type) {
         List<String> results = new ArrayList<>();
         Map<Long, String> map = store.get(type);
 
@@ -150,19 +579,182 @@ public class ImageSimilarityService {
     }
 
     /**
-     * Clears all stored data (hashes, filenames) and clears the entire BK-Tree cache.
+     * Removes a stored hash (and the filename it maps to) for the given HashType.
+     * The hash is dropped from the search index in place, so no rebuild is needed.
+     * * @param hashValue The hash to remove.
+     * @param type The HashType the hash was stored under.
+     * @return true if the hash was stored and has been removed, false otherwise.
+     */
+    public boolean remove(long hashValue, HashType type) {
+        boolean removed = store.get(type).remove(hashValue) != null;
+
+        // Only an index that is already built needs updating; a later build will not see the hash.
+        HashIndex index = indexCache.get(type);
+        if (index != null) {
+            index.remove(hashValue);
+        }
+        NeighborHashSet neighbors = neighborCache.get(type);
+        if (neighbors != null) {
+            neighbors.remove(hashValue);
+        }
+        LinearScanIndex scan = scanCache.get(type);
+        if (scan != null) {
+            scan.remove(hashValue);
+        }
+        if (removed && queryCache != null) {
+            queryCache.invalidate(hashValue, type);
+        }
+        return removed;
+    }
+
+    /**
+     * Compacts the built search indexes that removals have filled with dead entries (see
+     * HashIndex.needsCompaction()). Removing never compacts by itself, since that can take
+     * as long as rebuilding part of an index; call this when a pause is acceptable, e.g.
+     * after a batch of removals or from a maintenance task.
+     * * @return The number of indexes that were compacted.
+     */
+    public int compactIndexes() {
+        int compacted = 0;
+        for (HashIndex index : indexCache.values()) {
+            if (index.needsCompaction()) {
+                index.compact();
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Saves the hashes of a HashType with their filenames, so that a restarted service can
+     * {@link #load(HashType, Path)} them instead of hashing every image again. The index is
+     * written as a BK-Tree file that load() maps and searches in place (see MappedBKTree),
+     * and the filenames go to a companion file, named after it with a ".names" suffix.
+     * Each file is replaced atomically, the tree first.
+     * * @param type The HashType to save.
+     * @param file The BK-Tree file to write.
+     * @throws IOException if a file cannot be written.
+     */
+    public void save(HashType type, Path file) throws IOException {
+        // 1. The index as a BK-Tree: the current one, with the multiplicities of its hashes,
+        //    or one bulk loaded from the stored hashes if the HashType uses another index.
+        HashIndex index = indexCache.get(type);
+        BKTree tree;
+        if (index instanceof BKTree) {
+            tree = (BKTree) index;
+        } else if (index instanceof MappedBKTree) {
+            tree = ((MappedBKTree) index).toBKTree();
+        } else {
+            tree = BKTree.bulkLoad(storedHashes(type), ForkJoinPool.commonPool());
+        }
+        MappedBKTree.write(tree.freeze(), type, file);
+
+        // 2. The filenames, as pairs of hash and name.
+        Path names = namesFile(file);
+        Path temp = names.resolveSibling(names.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)))) {
+                Map<Long, String> map = store.get(type);
+                out.writeInt(map.size());
+                for (Map.Entry<Long, String> entry : map.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            Files.move(temp, names, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the hashes of a HashType with those saved by {@link #save(HashType, Path)}.
+     * The BK-Tree file is mapped rather than read: searches start right away, and page the
+     * tree in as they touch it. The HashType then uses an unsharded BK-Tree index; images
+     * stored or removed afterwards are kept in memory on top of the file until the next save.
+     * * @param type The HashType to load.
+     * @param file The BK-Tree file to map.
+     * @throws IOException if a file cannot be read, is not valid, or does not match the other.
+     */
+    public void load(HashType type, Path file) throws IOException {
+        // 1. The tree, which must hold hashes of this type.
+        MappedBKTree tree = MappedBKTree.open(file);
+        if (tree.hashType() != type) {
+            throw new IOException("BK-Tree file holds " + tree.hashType() + " hashes, not " + type + ": " + file);
+        }
+
+        // 2. The filenames, one for every hash of the tree.
+        Path names = namesFile(file);
+        Map<Long, String> map = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(names)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long hash = in.readLong();
+                map.put(hash, in.readUTF());
+            }
+        }
+        if (map.size() != tree.hashCount()) {
+            throw new IOException("Filenames in " + names + " do not match the BK-Tree file " + file);
+        }
+
+        // 3. Replace the state of the HashType.
+        store.put(type, map);
+        indexTypes.put(type, IndexType.BK_TREE);
+        shardCounts.put(type, 1);
+        indexCache.put(type, tree);
+        neighborCache.remove(type);
+        scanCache.remove(type);
+        planner.clear();
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
+    // Companion file of a saved BK-Tree file, holding the filenames.
+    private static Path namesFile(Path file) {
+        Path target = file.toAbsolutePath();
+        return target.resolveSibling(target.getFileName() + ".names");
+    }
+
+    /**
+     * High-level method to compute the hash of an image file and remove that hash
+     * (and the filename stored under it) from the store.
+     * * @param imageFile The image file to remove.
+     * @param type The HashType the image was stored under.
+     * @return true if the image's hash was stored and has been removed, false otherwise.
+     * @throws IOException if the image file cannot be read.
+     */
+    public boolean remove(File imageFile, HashType type) throws IOException {
+        BufferedImage img = ImageIO.read(imageFile);
+        return remove(computeHash(img, type), type);
+    }
+
+    /**
+     * Clears all stored data (hashes, filenames) and clears the entire index cache.
      * Resets the service to its initial, empty state.
      */
     public void clearAll() {
         store.values().forEach(Map::clear);
-        treeCache.clear();
+        indexCache.clear();
+        neighborCache.clear();
+        scanCache.clear();
+        planner.clear();
+        if (queryCache != null) {
+            queryCache.clear();
+        }
     }
 
     /**
-     * Clears only the cached BK-Trees. The stored hash-to-filename data remains.
-     * This forces the trees to be rebuilt on the next search operation.
+     * Clears only the cached search indexes (BK-Trees, neighbor sets...). The stored hash-to-filename
+     * data remains. This forces the indexes to be rebuilt on the next search operation.
      */
     public void clearTreeCache() {
-        treeCache.clear();
+        indexCache.clear();
+        neighborCache.clear();
+        scanCache.clear();
+        planner.clear();
     }
 }
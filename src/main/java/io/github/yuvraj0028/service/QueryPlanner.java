@@ -0,0 +1,117 @@
+package io.github.yuvraj0028.service;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.github.yuvraj0028.index.HashIndex;
+import io.github.yuvraj0028.index.LinearScanIndex;
+import io.github.yuvraj0028.index.NeighborHashSet;
+import io.github.yuvraj0028.models.HashType;
+import io.github.yuvraj0028.models.SearchStrategy;
+
+/**
+ * Picks the cheapest {@link SearchStrategy} for a similarity search. Neighbor probing and
+ * linear scans cost the same for every query, so they are estimated from the search distance
+ * and the number of stored hashes alone. The cost of the index depends on how the stored
+ * hashes are spread, so it is estimated on a sample of them, used as queries.
+ * <p>
+ * Plans are cached per HashType and distance, and recomputed once the index is rebuilt or
+ * the number of stored hashes drifts by more than a quarter (or, by the caller clearing
+ * them, once linear scans are enabled or disabled).
+ */
+class QueryPlanner {
+
+    // Number of stored hashes the cost of the index is averaged over.
+    private static final int SAMPLE_QUERIES = 16;
+
+    // Relative change in the number of stored hashes after which the statistics are renewed.
+    private static final double SIZE_DRIFT = 0.25;
+
+    // Statistics and plans of one HashType, valid for one index and about one size.
+    private static final class Stats {
+        final HashIndex index;
+        final int size;
+        final long[] samples;
+
+        // Plan for every search distance (0..64), computed on first use.
+        final SearchStrategy[] plans = new SearchStrategy[65];
+
+        Stats(HashIndex index, int size, long[] samples) {
+            this.index = index;
+            this.size = size;
+            this.samples = samples;
+        }
+    }
+
+    private final Map<HashType, Stats> stats = new EnumMap<>(HashType.class);
+
+    /**
+     * Returns the cheapest strategy for a search within maxDistance.
+     * @param type The HashType searched.
+     * @param maxDistance The maximum Hamming distance allowed for a match.
+     * @param index The current index of the HashType.
+     * @param hashes The stored hashes of the HashType.
+     * @param linearScans Whether a linear scan may be picked.
+     * @return The strategy to use.
+     */
+    SearchStrategy plan(HashType type, int maxDistance, HashIndex index, Collection<Long> hashes,
+                        boolean linearScans) {
+        if (maxDistance < 0) return SearchStrategy.INDEX;
+        int dist = Math.min(maxDistance, 64);
+
+        // 1. Renew the statistics if the index or the collection changed too much.
+        Stats current = stats.get(type);
+        int size = hashes.size();
+        if (current == null || current.index != index || Math.abs(size - current.size) > SIZE_DRIFT * current.size) {
+            current = new Stats(index, size, sample(hashes));
+            stats.put(type, current);
+        }
+
+        // 2. Compare the estimated costs. The index wins ties, as it needs no extra structure.
+        SearchStrategy plan = current.plans[dist];
+        if (plan == null) {
+            double indexCost = 0;
+            for (long sample : current.samples) {
+                indexCost += index.estimateSearchCost(sample, dist);
+            }
+            if (current.samples.length > 0) indexCost /= current.samples.length;
+
+            plan = SearchStrategy.INDEX;
+            double best = indexCost;
+            double probeCost = NeighborHashSet.estimateProbeCost(dist);
+            if (probeCost < best) {
+                plan = SearchStrategy.NEIGHBOR_PROBE;
+                best = probeCost;
+            }
+            if (linearScans && LinearScanIndex.estimateScanCost(size) < best) {
+                plan = SearchStrategy.LINEAR_SCAN;
+            }
+            current.plans[dist] = plan;
+        }
+        return plan;
+    }
+
+    // Picks up to SAMPLE_QUERIES hashes spread evenly over the collection's iteration order.
+    private static long[] sample(Collection<Long> hashes) {
+        int count = Math.min(SAMPLE_QUERIES, hashes.size());
+        long[] samples = new long[count];
+        if (count == 0) return samples;
+
+        int step = hashes.size() / count;
+        Iterator<Long> it = hashes.iterator();
+        for (int i = 0, pos = 0; i < count; pos++) {
+            long hash = it.next();
+            if (pos % step == 0) samples[i++] = hash;
+        }
+        return samples;
+    }
+
+    /**
+     * Drops every statistic and plan.
+     */
+    void clear() {
+        stats.clear();
+    }
+}
@@ -0,0 +1,310 @@
+package io.github.yuvraj0028.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.yuvraj0028.models.HashType;
+import io.github.yuvraj0028.utils.Hamming;
+
+/**
+ * Bounded cache of similarity search results, keyed by query hash, HashType and search
+ * distance, that evicts the least recently used entry when full. Storing or removing a hash
+ * only invalidates the entries whose results it changes: those whose query lies within
+ * their search distance of the hash. Entries are indexed per HashType and search distance r
+ * by r + 1 disjoint substrings of their query, as in multi-index hashing, so an invalidation
+ * only looks at the entries that share a substring with the hash rather than at the whole
+ * cache.
+ * <p>
+ * Hit, miss, eviction and invalidation counters are kept to tune the capacity.
+ */
+public final class QueryResultCache {
+
+    // Identifies a search: query hash, HashType and distance.
+    private static final class Key {
+        final long hash;
+        final HashType type;
+        final int maxDistance;
+
+        // Position of the entry in its bucket of every substring (see Group), once cached.
+        int[] slots;
+
+        Key(long hash, HashType type, int maxDistance) {
+            this.hash = hash;
+            this.type = type;
+            this.maxDistance = maxDistance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && type == other.type && maxDistance == other.maxDistance;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + type.ordinal() * 67 + maxDistance;
+        }
+    }
+
+    // Beyond this many substrings (search distances of 10 and more), substrings are so short
+    // that most entries would share one with any hash: such entries are all scanned instead.
+    private static final int MAX_SUBSTRINGS = 10;
+
+    // Entries whose queries share a substring value, with the query hashes packed in an array
+    // so that scanning them only runs over primitive longs.
+    private static final class Bucket {
+        long[] hashes = new long[2];
+        Key[] keys = new Key[2];
+        int size = 0;
+    }
+
+    // Entries of one HashType and search distance r, indexed by the substrings of their query
+    // hash. A hash within distance r of a query equals it in at least one of r + 1 disjoint
+    // substrings (pigeonhole principle), so only the entries of the matching buckets can be
+    // invalidated by it.
+    private static final class Group {
+        private final int maxDistance;
+
+        // Position and bit mask of every substring within the 64-bit hash.
+        private final int[] offsets;
+        private final long[] masks;
+
+        // buckets.get(i) maps the value of substring 'i' to the entries whose query has it.
+        private final List<Map<Long, Bucket>> buckets;
+
+        // Number of entries in the group.
+        int size = 0;
+
+        Group(int maxDistance) {
+            this.maxDistance = maxDistance;
+            // A negative distance matches nothing, so it needs no substrings at all.
+            int m = maxDistance < MAX_SUBSTRINGS ? Math.max(maxDistance + 1, 0) : 1;
+            offsets = new int[m];
+            masks = new long[m];
+            buckets = new ArrayList<>(m);
+
+            // The first (64 % m) substrings get one extra bit so that the widths add up to 64.
+            // Large distances use a single empty substring: one bucket holds every entry.
+            int offset = 0;
+            for (int i = 0; i < m; i++) {
+                int width = maxDistance < MAX_SUBSTRINGS ? 64 / m + (i < 64 % m ? 1 : 0) : 0;
+                offsets[i] = offset;
+                masks[i] = width == 64 ? -1L : (1L << width) - 1;
+                offset += width;
+                buckets.add(new HashMap<>());
+            }
+        }
+
+        // Extracts substring 'i' of a hash.
+        private long key(long hash, int i) {
+            return (hash >>> offsets[i]) & masks[i];
+        }
+
+        void add(Key entry) {
+            entry.slots = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                Bucket bucket = buckets.get(i).computeIfAbsent(key(entry.hash, i), k -> new Bucket());
+                int n = bucket.size;
+                if (n == bucket.hashes.length) {
+                    bucket.hashes = Arrays.copyOf(bucket.hashes, n * 2);
+                    bucket.keys = Arrays.copyOf(bucket.keys, n * 2);
+                }
+                bucket.hashes[n] = entry.hash;
+                bucket.keys[n] = entry;
+                bucket.size = n + 1;
+                entry.slots[i] = n;
+            }
+            size++;
+        }
+
+        void remove(Key entry) {
+            for (int i = 0; i < offsets.length; i++) {
+                long key = key(entry.hash, i);
+                Bucket bucket = buckets.get(i).get(key);
+
+                // The last entry of the bucket takes the slot of the removed one.
+                int slot = entry.slots[i];
+                int last = --bucket.size;
+                Key moved = bucket.keys[last];
+                bucket.hashes[slot] = bucket.hashes[last];
+                bucket.keys[slot] = moved;
+                moved.slots[i] = slot;
+                bucket.keys[last] = null;
+                if (last == 0) {
+                    buckets.get(i).remove(key);
+                }
+            }
+            size--;
+        }
+
+        // Collects the entries within their search distance of the hash (an entry may be
+        // collected once per substring it shares with the hash).
+        void matches(long hash, List<Key> out) {
+            for (int i = 0; i < offsets.length; i++) {
+                Bucket bucket = buckets.get(i).get(key(hash, i));
+                if (bucket == null) continue;
+                long[] hashes = bucket.hashes;
+                for (int j = 0; j < bucket.size; j++) {
+                    if (Hamming.distanceLong(hashes[j], hash) <= maxDistance) {
+                        out.add(bucket.keys[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    private final int capacity;
+
+    // Results stored as primitive arrays, in least- to most-recently used order.
+    private final LinkedHashMap<Key, long[]> entries;
+
+    // The same entries, grouped by HashType and search distance for invalidation.
+    private final Map<HashType, Map<Integer, Group>> groups = new EnumMap<>(HashType.class);
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    QueryResultCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, long[]> eldest) {
+                if (size() <= QueryResultCache.this.capacity) return false;
+                unindex(eldest.getKey());
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    // Returns the cached results of a search, or null if they are not cached.
+    List<Long> get(long hash, HashType type, int maxDistance) {
+        long[] cached = entries.get(new Key(hash, type, maxDistance));
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<Long> res = new ArrayList<>(cached.length);
+        for (long match : cached) {
+            res.add(match);
+        }
+        return res;
+    }
+
+    // Caches the results of a search.
+    void put(long hash, HashType type, int maxDistance, List<Long> results) {
+        long[] matches = new long[results.size()];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = results.get(i);
+        }
+        Key key = new Key(hash, type, maxDistance);
+        if (entries.put(key, matches) == null) {
+            groups.computeIfAbsent(type, t -> new HashMap<>())
+                    .computeIfAbsent(maxDistance, Group::new).add(key);
+        }
+    }
+
+    // Removes an entry that left the cache from its group, and drops the group once empty.
+    private void unindex(Key key) {
+        Map<Integer, Group> byDistance = groups.get(key.type);
+        Group group = byDistance.get(key.maxDistance);
+        group.remove(key);
+        if (group.size == 0) {
+            byDistance.remove(key.maxDistance);
+        }
+    }
+
+    // Drops the entries whose results change when 'hash' is stored or removed.
+    void invalidate(long hash, HashType type) {
+        Map<Integer, Group> byDistance = groups.get(type);
+        if (byDistance == null) return;
+
+        // Only the entries of this HashType that share a substring with the hash can be within
+        // their search distance of it; an entry found in several buckets is dropped once.
+        List<Key> stale = new ArrayList<>();
+        for (Group group : byDistance.values()) {
+            group.matches(hash, stale);
+        }
+        for (Key key : stale) {
+            if (entries.remove(key) != null) {
+                unindex(key);
+                invalidations++;
+            }
+        }
+    }
+
+    // Drops every entry.
+    void clear() {
+        entries.clear();
+        groups.clear();
+    }
+
+    /**
+     * Returns the maximum number of cached searches.
+     * @return The capacity.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of searches currently cached.
+     * @return The entry count.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of searches answered from the cache.
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of searches that were not cached.
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of searches answered from the cache.
+     * @return The hit ratio, between 0 and 1 (0 before the first search).
+     */
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of entries dropped to make room for newer ones.
+     * @return The eviction count.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of entries dropped because a stored or removed hash changed them.
+     * @return The invalidation count.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+}
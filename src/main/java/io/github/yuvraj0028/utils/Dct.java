@@ -0,0 +1,240 @@
+package io.github.yuvraj0028.utils;
+
+import io.github.yuvraj0028.models.DctKernel;
+
+/**
+ * Computes the top-left 8x8 block of the 2D Discrete Cosine Transform (DCT-II) of a 32x32
+ * block of pixels, the lowest frequency components used by pHash, with any of the
+ * {@link DctKernel} implementations.
+ * <p>
+ * The 2D DCT is separable: a 1D DCT along every row, then along every column of the result,
+ * gives the same coefficients as the direct double sum. Every coefficient is normalized as
+ * F[u][v] = 0.25 * c(u) * c(v) * sum over (i, j) of f[i][j] * cos((2i + 1) u PI / 64)
+ * * cos((2j + 1) v PI / 64), where c(0) = 1 / sqrt(2) and c(u) = 1 otherwise.
+ */
+final class Dct {
+
+    /** Side of the transformed block of pixels. */
+    static final int SIZE = 32;
+
+    /** Side of the block of lowest frequencies computed. */
+    static final int LOW = 8;
+
+    // DCT-II basis for the kept frequencies, with the normalization folded in:
+    // BASIS[u * SIZE + i] = c(u) * 0.5 * cos((2i + 1) * u * PI / (2 * SIZE)). Computed once,
+    // so no cosine is evaluated per image.
+    private static final double[] BASIS = basis();
+
+    // The same basis in fixed point, with FIXED_BITS fractional bits. Every value is at most
+    // 2^15 in magnitude, so a row pass over 8-bit pixels sums to less than 2^28 and fits an int.
+    // Rounding keeps the symmetries of the cosines exact (every row is symmetric or
+    // antisymmetric, and sums to zero except the first), so the coefficients that are zero in
+    // exact arithmetic, e.g. all AC coefficients of a flat block, come out exactly zero.
+    private static final int FIXED_BITS = 16;
+    private static final int[] FIXED_BASIS = fixedBasis();
+
+    // The basis transposed, BASIS_T[j * LOW + v] = BASIS[v * SIZE + j], so that the row pass
+    // of a batch reads the 8 basis values of one pixel contiguously.
+    private static final double[] BASIS_T = transpose(BASIS, LOW, SIZE);
+
+    private Dct() {}
+
+    /**
+     * Computes the 8x8 lowest-frequency DCT coefficients of a block of pixels.
+     * @param kernel The DCT implementation to use.
+     * @param f The 32x32 input pixels (gray levels 0-255), row-major.
+     * @return The 8x8 lowest-frequency DCT coefficients, row-major (F[u][v] at u * 8 + v).
+     */
+    static double[] lowFrequencies(DctKernel kernel, int[] f) {
+        switch (kernel) {
+            case BASIS: return basisTransform(f);
+            case FIXED_POINT: return fixedPointTransform(f);
+            default: throw new RuntimeException("DctKernel not supported");
+        }
+    }
+
+    private static double[] basis() {
+        double[] basis = new double[LOW * SIZE];
+        double c1 = Math.PI / (2.0 * SIZE);
+        for (int u = 0; u < LOW; u++) {
+            // Normalization factor c_u (scaled differently if u is 0), with half of the
+            // overall 2D factor 0.25.
+            double cu = u == 0 ? 1.0 / Math.sqrt(2) : 1.0;
+            for (int i = 0; i < SIZE; i++) {
+                basis[u * SIZE + i] = 0.5 * cu * Math.cos((2.0 * i + 1.0) * u * c1);
+            }
+        }
+        return basis;
+    }
+
+    private static double[] transpose(double[] m, int rows, int cols) {
+        double[] t = new double[m.length];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                t[c * rows + r] = m[r * cols + c];
+            }
+        }
+        return t;
+    }
+
+    private static int[] fixedBasis() {
+        int[] fixed = new int[BASIS.length];
+        for (int u = 0; u < LOW; u++) {
+            // 1. Round the first half of the row, and mirror it: cos((2(31 - i) + 1) u PI / 64)
+            //    = (-1)^u cos((2i + 1) u PI / 64).
+            int sum = 0;
+            for (int i = 0; i < SIZE / 2; i++) {
+                int value = (int) Math.round(BASIS[u * SIZE + i] * (1 << FIXED_BITS));
+                fixed[u * SIZE + i] = value;
+                fixed[u * SIZE + SIZE - 1 - i] = u % 2 == 0 ? value : -value;
+                sum += value;
+            }
+
+            // 2. An even row but the first sums to zero over each half: absorb any rounding
+            //    residue in its largest values (the first and last), which it barely changes.
+            if (u > 0 && u % 2 == 0) {
+                fixed[u * SIZE] -= sum;
+                fixed[u * SIZE + SIZE - 1] -= sum;
+            }
+        }
+        return fixed;
+    }
+
+    // Separable transform against the cosine basis: only the 8 lowest frequencies are
+    // computed in each pass, about 10,000 multiply-adds in total.
+    private static double[] basisTransform(int[] f) {
+        // 1. Row pass: rows[i * 8 + v] = sum over j of f[i][j] * basis[v][j].
+        double[] rows = new double[SIZE * LOW];
+        for (int i = 0; i < SIZE; i++) {
+            for (int v = 0; v < LOW; v++) {
+                double sum = 0.0;
+                for (int j = 0; j < SIZE; j++) {
+                    sum += f[i * SIZE + j] * BASIS[v * SIZE + j];
+                }
+                rows[i * LOW + v] = sum;
+            }
+        }
+
+        // 2. Column pass: F[u][v] = sum over i of basis[u][i] * rows[i][v].
+        double[] F = new double[LOW * LOW];
+        for (int u = 0; u < LOW; u++) {
+            for (int i = 0; i < SIZE; i++) {
+                double b = BASIS[u * SIZE + i];
+                for (int v = 0; v < LOW; v++) {
+                    F[u * LOW + v] += b * rows[i * LOW + v];
+                }
+            }
+        }
+        return F;
+    }
+
+    /**
+     * Computes the 8x8 lowest-frequency DCT coefficients of a run of blocks of pixels at
+     * once, with the BASIS kernel. Both passes are matrix multiplications over the whole run
+     * (GEMM): the rows of all blocks, stacked, times the basis, then the basis times the
+     * resulting columns of all blocks side by side. Long, contiguous inner loops keep the
+     * basis in registers and let the JIT vectorize them. Every coefficient is summed in the
+     * same order as by {@link #lowFrequencies}, so the results are identical.
+     * Callers should keep runs to a few dozen blocks, so that the intermediate matrix
+     * (2 KB per block) stays in the L1 or L2 cache.
+     * @param f Blocks of 32x32 input pixels (gray levels 0-255), row-major.
+     * @param from The first block of the run.
+     * @param to The end (exclusive) of the run.
+     * @return The coefficients of every block of the run, 64 per block, each block row-major.
+     */
+    static double[] lowFrequencies(int[][] f, int from, int to) {
+        int count = to - from;
+        int width = count * LOW;
+
+        // 1. Row pass: (32 * count rows of pixels) x (32 x 8 basis), stored transposed per
+        //    block so that the row i of every block is one row of a 32 x (8 * count) matrix:
+        //    rows[i * width + b * 8 + v].
+        double[] rows = new double[SIZE * width];
+        for (int b = 0; b < count; b++) {
+            int[] block = f[from + b];
+            for (int i = 0; i < SIZE; i++) {
+                // Register blocking: the 8 sums of one pixel row are accumulated together.
+                double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0, s6 = 0.0, s7 = 0.0;
+                for (int j = 0; j < SIZE; j++) {
+                    double x = block[i * SIZE + j];
+                    int k = j * LOW;
+                    s0 += x * BASIS_T[k];
+                    s1 += x * BASIS_T[k + 1];
+                    s2 += x * BASIS_T[k + 2];
+                    s3 += x * BASIS_T[k + 3];
+                    s4 += x * BASIS_T[k + 4];
+                    s5 += x * BASIS_T[k + 5];
+                    s6 += x * BASIS_T[k + 6];
+                    s7 += x * BASIS_T[k + 7];
+                }
+                int o = i * width + b * LOW;
+                rows[o] = s0;
+                rows[o + 1] = s1;
+                rows[o + 2] = s2;
+                rows[o + 3] = s3;
+                rows[o + 4] = s4;
+                rows[o + 5] = s5;
+                rows[o + 6] = s6;
+                rows[o + 7] = s7;
+            }
+        }
+
+        // 2. Column pass: (8 x 32 basis) x (32 x 8 * count), one long AXPY per basis value:
+        //    cols[u * width + b * 8 + v] += basis[u][i] * rows[i][b * 8 + v].
+        double[] cols = new double[LOW * width];
+        for (int u = 0; u < LOW; u++) {
+            for (int i = 0; i < SIZE; i++) {
+                double c = BASIS[u * SIZE + i];
+                int out = u * width;
+                int in = i * width;
+                for (int k = 0; k < width; k++) {
+                    cols[out + k] += c * rows[in + k];
+                }
+            }
+        }
+
+        // 3. Gather the coefficients of every block together.
+        double[] F = new double[count * LOW * LOW];
+        for (int b = 0; b < count; b++) {
+            for (int u = 0; u < LOW; u++) {
+                System.arraycopy(cols, u * width + b * LOW, F, b * LOW * LOW + u * LOW, LOW);
+            }
+        }
+        return F;
+    }
+
+    // Same passes in integer arithmetic: the row pass accumulates in ints (2^16 scale), the
+    // column pass in longs (2^32 scale). The result is exact, so it is the same on every
+    // platform; only the rounding of the basis makes it differ from the double kernels.
+    private static double[] fixedPointTransform(int[] f) {
+        // 1. Row pass.
+        int[] rows = new int[SIZE * LOW];
+        for (int i = 0; i < SIZE; i++) {
+            for (int v = 0; v < LOW; v++) {
+                int sum = 0;
+                for (int j = 0; j < SIZE; j++) {
+                    sum += f[i * SIZE + j] * FIXED_BASIS[v * SIZE + j];
+                }
+                rows[i * LOW + v] = sum;
+            }
+        }
+
+        // 2. Column pass.
+        long[] sums = new long[LOW * LOW];
+        for (int u = 0; u < LOW; u++) {
+            for (int i = 0; i < SIZE; i++) {
+                long b = FIXED_BASIS[u * SIZE + i];
+                for (int v = 0; v < LOW; v++) {
+                    sums[u * LOW + v] += b * rows[i * LOW + v];
+                }
+            }
+        }
+
+        // 3. Back to the scale of the other kernels (exact: the sums stay below 2^53).
+        double[] F = new double[LOW * LOW];
+        for (int k = 0; k < F.length; k++) {
+            F[k] = sums[k] / (double) (1L << (2 * FIXED_BITS));
+        }
+        return F;
+    }
+}
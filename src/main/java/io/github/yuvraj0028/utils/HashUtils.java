@@ -1,6 +1,12 @@
 package io.github.yuvraj0028.utils;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import io.github.yuvraj0028.models.DctKernel;
 
 /**
  * Utility class for generating 64-bit perceptual hashes (dHash, Blockhash, pHash) 
@@ -11,6 +17,24 @@ public class HashUtils {
     // Private constructor to prevent instantiation of this static utility class.
     private HashUtils() {}
 
+    // Thumbnails transformed together by a batch pHash: their intermediate matrix (64 KB)
+    // stays in the L2 cache, and a batch of thousands still splits into many parallel tasks.
+    private static final int BATCH_RUN = 32;
+
+    // Relative size, against the DC coefficient, below which pHash treats an AC coefficient
+    // as zero: far above the rounding error of either DCT kernel (below 1e-15), and below the
+    // smallest genuine coefficient seen on photos, noise and synthetic images (about 1e-8).
+    private static final double FLAT_EPSILON = 1e-9;
+
+    // Per-thread copies of the 64 values a median is selected from, so that hashing does not
+    // allocate them for every image.
+    private static final class Scratch {
+        final int[] ints = new int[64];
+        final double[] doubles = new double[64];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
     // --- Difference Hash (dHash) ---
     
     /**
@@ -20,18 +44,17 @@ public class HashUtils {
      * @return The 64-bit dHash value.
      */
     public static long dHash64(BufferedImage img) {
-        // 1. Convert to grayscale.
-        BufferedImage gray = ImageUtils.toGrayscale(img);
-        // 2. Resize to 9x8. The extra column is needed to calculate 8 horizontal differences per row.
-        BufferedImage small = ImageUtils.resize(gray, 9, 8);
+        // 1-2. Convert to grayscale and resize to 9x8. The extra column is needed to calculate
+        //      8 horizontal differences per row.
+        int[] small = ImageUtils.grayThumbnail(img, 9, 8);
 
         long hash = 0L;
         // Iterate through the 8x8 grid of pixel comparisons.
         for (int y = 0; y < 8; y++) {
             for (int x = 0; x < 8; x++) {
                 // Get grayscale values of two adjacent pixels (left: x, right: x+1).
-                int left = ImageUtils.getGray(small, x, y);
-                int right = ImageUtils.getGray(small, x + 1, y);
+                int left = small[y * 9 + x];
+                int right = small[y * 9 + x + 1];
                 
                 // Shift the hash left by 1 to make room for the new bit.
                 hash <<= 1;
@@ -54,17 +77,8 @@ public class HashUtils {
      * @return The 64-bit block hash value.
      */
     public static long blockHash64(BufferedImage img) {
-        // 1. Convert to grayscale and resize to 8x8.
-        BufferedImage gray = ImageUtils.toGrayscale(img);
-        BufferedImage small = ImageUtils.resize(gray, 8, 8);
-
-        // 2. Extract 64 grayscale pixel values.
-        int[] vals = new int[64];
-        for (int y = 0; y < 8; y++) {
-            for (int x = 0; x < 8; x++) {
-                vals[y * 8 + x] = ImageUtils.getGray(small, x, y);
-            }
-        }
+        // 1-2. Convert to grayscale, resize to 8x8 and extract the 64 grayscale pixel values.
+        int[] vals = ImageUtils.grayThumbnail(img, 8, 8);
         
         // 3. Find the median intensity of all 64 pixels.
         int median = median(vals);
@@ -83,10 +97,40 @@ public class HashUtils {
      * Helper method to compute the median of an array of integers.
      */
     private static int median(int[] arr) {
-        int[] copy = arr.clone();
-        java.util.Arrays.sort(copy);
+        int[] copy = SCRATCH.get().ints;
+        if (copy.length != arr.length) copy = new int[arr.length];
+        System.arraycopy(arr, 0, copy, 0, arr.length);
         // The median is the value at the middle index (for 64 elements, it's index 32).
-        return copy[copy.length / 2];
+        return select(copy, copy.length / 2);
+    }
+
+    /**
+     * Returns the k-th smallest value of 'a', the one a sort would put at index k, and
+     * partially reorders 'a' (Hoare's quickselect, with the middle element as pivot). The
+     * worst case is quadratic, which for 64 values is still fewer comparisons than a sort.
+     */
+    private static int select(int[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            int pivot = a[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    int t = a[i];
+                    a[i++] = a[j];
+                    a[j--] = t;
+                }
+            }
+            // Now a[lo..j] <= pivot <= a[i..hi], and everything between equals the pivot.
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else break;
+        }
+        return a[k];
     }
 
     // --- Perceptual Hash (pHash) ---
@@ -98,36 +142,99 @@ public class HashUtils {
      * @return The 64-bit pHash value.
      */
     public static long pHash64(BufferedImage img) {
-        // 1. Convert to grayscale and resize to a larger size, typically 32x32 for DCT.
-        BufferedImage gray = ImageUtils.toGrayscale(img);
-        BufferedImage small = ImageUtils.resize(gray, 32, 32);
-
-        // 2. Copy the 32x32 pixel values into a 2D double array.
-        double[][] vals = new double[32][32];
-        for (int y = 0; y < 32; y++) {
-            for (int x = 0; x < 32; x++) {
-                vals[y][x] = ImageUtils.getGray(small, x, y);
-            }
-        }
+        return pHash64(img, DctKernel.BASIS);
+    }
 
-        // 3. Apply the 2D Discrete Cosine Transform (DCT).
-        double[][] dct = applyDCT(vals);
+    /**
+     * Generates a 64-bit Perceptual Hash (pHash), computing the DCT with the given kernel.
+     * The kernels agree up to rounding, and coefficients that are zero in exact arithmetic
+     * are hashed as exactly zero, so flat images get the same hash with either kernel
+     * (see DctKernel).
+     * * @param img The source image.
+     * @param kernel The DCT implementation to use.
+     * @return The 64-bit pHash value.
+     */
+    public static long pHash64(BufferedImage img, DctKernel kernel) {
+        // 1-2. Convert to grayscale, resize to 32x32 and copy the pixel values.
+        int[] vals = pHashThumbnail(img);
 
-        // 4. Extract the top-left 8x8 block (the 64 lowest frequency components).
-        double[] top = new double[64];
-        int idx = 0;
-        // Exclude the DC coefficient (dct[0][0]) for better robustness in pHash, 
-        // starting from (0,0) and going up to (7,7).
-        for (int y = 0; y < 8; y++) {
-            for (int x = 0; x < 8; x++) {
-                top[idx++] = dct[y][x];
+        // 3-4. Apply the 2D Discrete Cosine Transform (DCT), computing only the top-left 8x8
+        //      block (the 64 lowest frequency components), row by row from (0,0) to (7,7).
+        double[] top = Dct.lowFrequencies(kernel, vals);
+
+        // 5-6. Compare the coefficients to their median.
+        return pHashBits(top);
+    }
+
+    /**
+     * Computes the thumbnail that pHash transforms: the image in grayscale, resized to 32x32.
+     * Thumbnails can be hashed many at a time with {@link #pHash64Batch(int[][])}.
+     * * @param img The source image.
+     * @return The 32x32 gray levels (0-255), row-major.
+     */
+    public static int[] pHashThumbnail(BufferedImage img) {
+        // Convert to grayscale, resize to a larger size, typically 32x32 for DCT, and copy the
+        // pixel values into a flat, row-major array.
+        return ImageUtils.grayThumbnail(img, Dct.SIZE, Dct.SIZE);
+    }
+
+    /**
+     * Generates the pHash of many thumbnails at once, in parallel in the common pool.
+     * * @param thumbnails The 32x32 thumbnails, as computed by {@link #pHashThumbnail}.
+     * @return The 64-bit pHash of every thumbnail, in order; each is identical to the one
+     *         {@link #pHash64(BufferedImage)} computes for the image.
+     */
+    public static long[] pHash64Batch(int[][] thumbnails) {
+        return pHash64Batch(thumbnails, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generates the pHash of many thumbnails at once. Instead of one small transform per
+     * thumbnail, the DCT runs over runs of thumbnails stacked into matrices, which makes it
+     * a compute-bound matrix multiplication; the runs are spread over the pool.
+     * * @param thumbnails The 32x32 thumbnails, as computed by {@link #pHashThumbnail}.
+     * @param pool The pool that hashes the runs of thumbnails.
+     * @return The 64-bit pHash of every thumbnail, in order; each is identical to the one
+     *         {@link #pHash64(BufferedImage)} computes for the image.
+     */
+    public static long[] pHash64Batch(int[][] thumbnails, ForkJoinPool pool) {
+        for (int[] thumbnail : thumbnails) {
+            if (thumbnail.length != Dct.SIZE * Dct.SIZE) {
+                throw new IllegalArgumentException("Thumbnail must be 32x32: " + thumbnail.length + " pixels");
             }
         }
+        long[] hashes = new long[thumbnails.length];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < thumbnails.length; from += BATCH_RUN) {
+            int start = from;
+            int end = Math.min(thumbnails.length, from + BATCH_RUN);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                double[] coefficients = Dct.lowFrequencies(thumbnails, start, end);
+                double[] top = new double[Dct.LOW * Dct.LOW];
+                for (int t = start; t < end; t++) {
+                    System.arraycopy(coefficients, (t - start) * top.length, top, 0, top.length);
+                    hashes[t] = pHashBits(top);
+                }
+            }));
+        }
+        pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+        return hashes;
+    }
+
+    // Turns the 8x8 lowest-frequency DCT coefficients into the hash bits.
+    private static long pHashBits(double[] top) {
+        // 5. Set the AC coefficients that are zero in exact arithmetic (within a relative
+        //    FLAT_EPSILON of the DC coefficient) to exactly zero: on flat or perfectly regular
+        //    thumbnails, the rounding noise left in them would otherwise decide the hash.
+        double flat = FLAT_EPSILON * Math.abs(top[0]);
+        for (int k = 1; k < top.length; k++) {
+            if (Math.abs(top[k]) <= flat) top[k] = 0.0;
+        }
 
-        // 5. Calculate the median of the 64 selected DCT coefficients.
+        // 6. Calculate the median of the 64 selected DCT coefficients.
         double median = median(top);
         
-        // 6. Generate the 64-bit hash by comparing the coefficients to the median.
+        // 7. Generate the 64-bit hash by comparing the coefficients to the median.
         long hash = 0L;
         for (double v : top) {
             hash <<= 1;
@@ -141,43 +248,37 @@ public class HashUtils {
      * Helper method to compute the median of an array of doubles.
      */
     private static double median(double[] arr) {
-        double[] copy = arr.clone();
-        java.util.Arrays.sort(copy);
+        double[] copy = SCRATCH.get().doubles;
+        if (copy.length != arr.length) copy = new double[arr.length];
+        System.arraycopy(arr, 0, copy, 0, arr.length);
         // Returns the middle element.
-        return copy[copy.length / 2];
+        return select(copy, copy.length / 2);
     }
 
     /**
-     * Computes the 2D Discrete Cosine Transform (DCT) on a square matrix 'f'.
-     * This mathematical transformation converts spatial data (pixels) into frequency data.
-     * * @param f The N x N input matrix (pixel values).
-     * @return The N x N DCT transformed matrix (frequency components).
+     * Same selection as {@link #select(int[], int)} over doubles. It may return -0.0 where a
+     * sort would return 0.0, which compares the same to every coefficient.
      */
-    private static double[][] applyDCT(double[][] f) {
-        int N = f.length;
-        double[][] F = new double[N][N];
-        double c1 = Math.PI / (2.0 * N);
-        
-        // Outer loops iterate over the frequency coefficients (u, v).
-        for (int u = 0; u < N; u++) {
-            for (int v = 0; v < N; v++) {
-                double sum = 0.0;
-                // Inner loops iterate over the spatial domain (i, j).
-                for (int i = 0; i < N; i++) {
-                    for (int j = 0; j < N; j++) {
-                        // Core DCT formula calculation.
-                        sum += f[i][j] * Math.cos((2.0 * i + 1.0) * u * c1) * Math.cos((2.0 * j + 1.0) * v * c1);
-                    }
+    private static double select(double[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            double pivot = a[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    double t = a[i];
+                    a[i++] = a[j];
+                    a[j--] = t;
                 }
-                
-                // Normalization factors c_u and c_v (scaled differently if u or v is 0).
-                double cu = u == 0 ? 1.0 / Math.sqrt(2) : 1.0;
-                double cv = v == 0 ? 1.0 / Math.sqrt(2) : 1.0;
-                
-                // Final calculation of the DCT coefficient F[u][v].
-                F[u][v] = 0.25 * cu * cv * sum;
             }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else break;
         }
-        return F;
+        return a[k];
     }
 }
@@ -3,6 +3,9 @@ package io.github.yuvraj0028.utils;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 
@@ -17,6 +20,20 @@ public class ImageUtils {
     // Private constructor to prevent instantiation of this static utility class.
     private ImageUtils() {}
 
+    // getGray of every stored TYPE_BYTE_GRAY sample: getRGB converts the (linear) gray sample
+    // to sRGB, so the byte in the raster is not the value getGray returns.
+    private static final int[] GRAY_LEVELS = grayLevels();
+
+    private static int[] grayLevels() {
+        BufferedImage ramp = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        int[] levels = new int[256];
+        for (int i = 0; i < 256; i++) {
+            ramp.getRaster().setSample(i, 0, 0, i);
+            levels[i] = getGray(ramp, i, 0);
+        }
+        return levels;
+    }
+
     /**
      * Reads an image from the specified file.
      * @param f The image file.
@@ -77,4 +94,60 @@ public class ImageUtils {
         // least significant byte (which holds the gray intensity in TYPE_BYTE_GRAY).
         return img.getRGB(x, y) & 0xff;
     }
+
+    /**
+     * Extracts the grayscale intensity values (0-255) of all pixels, the same values as
+     * {@link #getGray} returns. For a TYPE_BYTE_GRAY image the bytes are read straight from
+     * its raster instead of converting every pixel through the ColorModel.
+     * @param img The BufferedImage.
+     * @return The grayscale intensities, row-major (pixel (x, y) at y * width + x).
+     */
+    public static int[] getGrayPixels(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = new int[width * height];
+
+        WritableRaster raster = img.getRaster();
+        if (img.getType() == BufferedImage.TYPE_BYTE_GRAY
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel) {
+            // Fast path: walk the byte array row by row, honoring the strides and offsets of
+            // the sample model (a sub-image shares the raster of its parent).
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            byte[] data = buffer.getData();
+            int rowStride = model.getScanlineStride();
+            int pixelStride = model.getPixelStride();
+            int origin = buffer.getOffset() + model.getOffset(
+                    raster.getMinX() - raster.getSampleModelTranslateX(),
+                    raster.getMinY() - raster.getSampleModelTranslateY());
+            for (int y = 0; y < height; y++) {
+                int at = origin + y * rowStride;
+                for (int x = 0; x < width; x++, at += pixelStride) {
+                    pixels[y * width + x] = GRAY_LEVELS[data[at] & 0xff];
+                }
+            }
+            return pixels;
+        }
+
+        // Any other image type goes through the ColorModel, one pixel at a time.
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = getGray(img, x, y);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Converts an image to grayscale, resizes it and extracts its pixels: the thumbnail the
+     * perceptual hashes are computed from.
+     * @param img The source image.
+     * @param width The thumbnail width.
+     * @param height The thumbnail height.
+     * @return The grayscale intensities (0-255) of the thumbnail, row-major.
+     */
+    public static int[] grayThumbnail(BufferedImage img, int width, int height) {
+        return getGrayPixels(resize(toGrayscale(img), width, height));
+    }
 }